@@ -22,28 +22,78 @@ import static java.lang.System.Logger.Level.ERROR;
 import static java.lang.System.Logger.Level.INFO;
 import static java.lang.System.Logger.Level.TRACE;
 import static java.lang.System.Logger.Level.WARNING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.module.FindException;
 import java.lang.module.ModuleDescriptor;
 import java.lang.module.ModuleDescriptor.Requires;
 import java.lang.module.ModuleDescriptor.Version;
 import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReader;
+import java.lang.module.ModuleReference;
+import java.lang.module.ResolutionException;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -51,13 +101,46 @@ import java.util.Optional;
 import java.util.Properties;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.StringJoiner;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.spi.ToolProvider;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Element;
 
 /** Java Shell Builder. */
 public class Bach {
@@ -74,9 +157,13 @@ public class Bach {
    * @return new default Bach instance
    */
   public static Bach of() {
+    return of(Bach.Configuration.of(Path.of("")));
+  }
+
+  /** Create new Bach instance with the given configuration writing to the standard streams. */
+  static Bach of(Configuration configuration) {
     var out = new PrintWriter(System.out, true);
     var err = new PrintWriter(System.err, true);
-    var configuration = Bach.Configuration.of(Path.of(""));
     return new Bach(out, err, configuration);
   }
 
@@ -88,11 +175,22 @@ public class Bach {
    */
   public static void main(String... arguments) {
     var args = List.of(Util.assigned(arguments, "arguments"));
-    var bach = Bach.of();
+    var configuration = Bach.Configuration.of(Path.of(""));
+    // fast path: exit before scanning the project when nothing changed since the last build
+    var fingerprint = new Fingerprint(configuration, args);
+    var sources = fingerprint.applicable() ? fingerprint.sources() : null;
+    if (sources != null && fingerprint.matches(fingerprint.inputs(sources))) {
+      System.out.println("Bach.java " + VERSION + " " + String.join(" ", args) + " is up-to-date");
+      return;
+    }
+    var bach = Bach.of(configuration);
     var code = bach.main(args);
     if (code != 0) {
       throw new Error("Bach.main(" + Util.join(arguments) + ") failed with error code: " + code);
     }
+    if (sources != null) {
+      fingerprint.store(fingerprint.inputs(sources)); // with the library as resolved by the build
+    }
   }
 
   /** Text-output writer. */
@@ -101,8 +199,12 @@ public class Bach {
   final Configuration configuration;
   /** Tool caller. */
   final Runner runner;
+  /** Sequencer of captured tool output. */
+  final Console console;
   /** Modular project model instance. */
   final Project project;
+  /** Build history recorder. */
+  final History history;
 
   /** Initialize this instance with text-based "log" writers and a configuration. */
   Bach(PrintWriter out, PrintWriter err, Configuration configuration) {
@@ -110,7 +212,9 @@ public class Bach {
     this.err = Util.assigned(err, "err");
     this.configuration = Util.assigned(configuration, "configuration");
     this.runner = new Runner();
+    this.console = new Console(configuration.work.resolve(".bach/logs"));
     this.project = new Project();
+    this.history = new History(configuration.work.resolve(".bach/history.txt"));
   }
 
   /** Log message unless threshold suppresses it. */
@@ -134,13 +238,24 @@ public class Bach {
     log(DEBUG, "Tools");
     log(DEBUG, "  api=%s", Util.sorted(Tool.API));
     log(DEBUG, "  basic=%s", Util.sorted(configuration.basic.tools()));
-    log(DEBUG, "  provided=%s", Tool.PROVIDED);
+    log(DEBUG, "  provided=%s", runner.providers.names());
     log(DEBUG, "Project");
     log(DEBUG, "  name=%s", project.name);
     log(DEBUG, "  version=%s", project.name);
     log(DEBUG, "  modules=%s", project.modules);
 
-    var deque = new ArrayDeque<>(arguments);
+    new Cache().evictInBackground();
+    var code = main(new ArrayDeque<>(arguments));
+    log(DEBUG, "Tools run in-process: %s", runner.inProcess);
+    log(DEBUG, "Tools run in new processes: %s", runner.forked);
+    if (code == 0 && !history.counters.isEmpty()) {
+      history.append();
+    }
+    return code;
+  }
+
+  /** Run all tools in the given deque, stopping at the first failing one. */
+  private int main(ArrayDeque<String> deque) {
     while (!deque.isEmpty()) {
       var argument = deque.removeFirst();
       if ("tool".equals(argument)) {
@@ -175,6 +290,70 @@ public class Bach {
     return new Formatter().format(List.of(configuration.path(Property.PATH_SOURCES)), true);
   }
 
+  /** Download missing external modules of all realms. */
+  public int resolve() {
+    var resolver = new Resolver();
+    var code = resolver.resolve(project.main);
+    return code != 0 ? code : resolver.resolve(project.test);
+  }
+
+  /** Resolve external modules, compile and package all modules of the project. */
+  public int build() {
+    var code = resolve();
+    if (code != 0) {
+      return code;
+    }
+    var jigsaw = new Jigsaw();
+    code = jigsaw.compile(project.main);
+    return code != 0 ? code : jigsaw.compile(project.test);
+  }
+
+  /** Delete all generated files, moving the target directory aside first. */
+  public int clean() {
+    var target = configuration.path(Property.PATH_TARGET);
+    try {
+      Util.treeDeleteInBackground(target, count -> log(DEBUG, "Deleted %,d paths", count));
+      log(DEBUG, "Deleting %s in the background", target);
+      return 0;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cleaning failed: " + target, e);
+    }
+  }
+
+  /** Link main modules and their external modules into a custom runtime image. */
+  public int link() {
+    return new Linker().link(project.main);
+  }
+
+  /** Print usage of the shared cache and evict artifacts exceeding its bounds. */
+  public int cache() {
+    return new Cache().prune();
+  }
+
+  /** Print duration trends of all recorded builds and flag regressions. */
+  public int stats() {
+    var records = history.builds();
+    if (records.isEmpty()) {
+      out.println("No build recorded, yet: " + history.file);
+      return 0;
+    }
+    var latest = records.get(records.size() - 1);
+    var previous = records.subList(0, records.size() - 1);
+    out.printf("%d build(s) recorded in %s%n", records.size(), history.file);
+    out.printf("  %-30s %s%n", "time", Instant.ofEpochMilli(latest.getOrDefault("time", 0L)));
+    for (var key : new TreeSet<>(latest.keySet())) {
+      if (key.equals("time")) {
+        continue; // a point in time, not a duration or size with a trend
+      }
+      var median = history.median(previous, key);
+      var trend =
+          median == 0 ? "" : String.format(" %+d%%", (latest.get(key) - median) * 100 / median);
+      out.printf("  %-30s %,12d (median %,d)%s%n", key, latest.get(key), median, trend);
+    }
+    history.regressions(records).forEach(message -> log(WARNING, "%s", message));
+    return 0;
+  }
+
   /** Print usage help. */
   public int help() {
     out.println("Usage: Bach.java <options>");
@@ -209,9 +388,78 @@ public class Bach {
     /** Path to directory containing all Java module sources. */
     PATH_SOURCES("src", "Path to directory containing all Java module sources."),
 
+    /** Path to directory containing 3rd-party modules, one subdirectory per realm. */
+    PATH_LIBRARY("lib", "Path to directory containing 3rd-party modules."),
+
+    /** Path to directory storing all generated files, one subdirectory per realm. */
+    PATH_TARGET("bin", "Path to directory storing all generated files."),
+
+    /** Path to directory storing tools, images and other artifacts shared by all builds. */
+    PATH_CACHE("~/.bach", "Path to directory storing artifacts shared by all builds.") {
+      @Override
+      String defaultValue(Configuration configuration) {
+        return USER_HOME.resolve(".bach").toString();
+      }
+    },
+
     /** Options passed to all 'javac' calls. */
     OPTIONS_JAVAC("-encoding\nUTF-8\n-parameters\n-Xlint", "Options passed to 'javac' calls."),
 
+    /** Options passed to 'jlink' calls. */
+    OPTIONS_JLINK(
+        "--strip-debug\n--no-header-files\n--no-man-pages", "Options passed to 'jlink' calls."),
+
+    /** Options added to forked 'java' processes launched with the tuned profile. */
+    OPTIONS_JAVA_TUNED(
+        "-XX:TieredStopAtLevel=1\n-XX:+UseSerialGC\n-Xshare:auto",
+        "Options of the tuned launch profile of short-lived tools forked via 'java'."),
+
+    /** Launch profile of forked 'java' processes. */
+    JAVA_PROFILE(
+        "default",
+        "Launch profile of tools forked via 'java': 'default' uses JVM ergonomics, 'tuned' adds"
+            + " the tuned options and a class data sharing archive per tool, 'adaptive' picks the"
+            + " faster one of both per tool based on recorded durations."),
+
+    /** Percentage a tool's duration may exceed its rolling median before being flagged. */
+    STATS_THRESHOLD("25", "Percentage a tool's duration may exceed its rolling median."),
+
+    /** Packaging mode: compressed jars, uncompressed jars or class directories. */
+    PACKAGE_MODE(
+        "deflate",
+        "Packaging mode: 'deflate' compresses jar entries, 'store' writes uncompressed jars"
+            + " and 'directory' copies resources into class directories instead of jarring."),
+
+    /** Write class files into class directories, also when packaging jars. */
+    COMPILE_CLASSES(
+        "false",
+        "Write class files into class directories, 'false' compiles them in memory and streams"
+            + " them into jars. Always 'true' in 'directory' packaging mode."),
+
+    /** Output mode of in-process tools, which may run concurrently. */
+    TOOL_OUTPUT(
+        "buffered",
+        "Output of in-process tools: 'buffered' prints it when a tool finished, in the order the"
+            + " tools were started, 'prefixed' streams each line prefixed with the tool's name."),
+
+    /** Fixed modification time of all packaged entries, empty for times of the files. */
+    PACKAGE_TIMESTAMP(
+        "", "ISO-8601 instant used as time of all jar entries, like 2019-08-01T00:00:00Z."),
+
+    /** Create a default class data sharing archive in linked images. */
+    LINK_CDS("false", "Dump a default CDS archive into linked images for faster startup."),
+
+    /** Maximum size of all cached artifacts. */
+    CACHE_BUDGET(
+        "2g", "Maximum size of all cached artifacts in bytes, with optional k, m or g suffix."),
+
+    /** Maximum time since the last access of a cached artifact. */
+    CACHE_TTL("P90D", "Maximum time since the last access of a cached artifact, like P90D."),
+
+    /** Maven 2 repository used to download modules by their coordinates. */
+    URI_MAVEN_REPOSITORY(
+        "https://repo1.maven.org/maven2", "Maven 2 repository used to download modules."),
+
     /** Google Java Format Uniform Resource Identifier. */
     URI_TOOL_FORMAT(
         "https://github.com/"
@@ -258,9 +506,14 @@ public class Bach {
         return Map.of();
       }
 
-      /** ProcessBuilder mutator. */
+      /**
+       * ProcessBuilder mutator, output pipes are captured and sequenced by the {@link Console}.
+       *
+       * <p>The standard input stream is inherited, a tool reading it must not wait for a pipe that
+       * is never written to.
+       */
       UnaryOperator<ProcessBuilder> redirectIO() {
-        return ProcessBuilder::inheritIO;
+        return builder -> builder.redirectInput(ProcessBuilder.Redirect.INHERIT);
       }
     }
 
@@ -358,7 +611,9 @@ public class Bach {
       final String name;
       final String moduleSourcePath;
       final Map<String, ModuleDescriptor> declaredModules;
+      final Map<String, Path> declaredSources;
       final Set<String> externalModules;
+      final Path target;
 
       Realm(String name) {
         this.name = name;
@@ -366,7 +621,8 @@ public class Bach {
         var sources = configuration.path(Property.PATH_SOURCES);
         var moduleSourcePaths = new TreeSet<String>();
         var descriptors = new TreeMap<String, ModuleDescriptor>();
-        var declarations = Util.find(sources, Util::isModuleInfo);
+        var roots = new TreeMap<String, Path>();
+        var declarations = Util.find(List.of(sources), Util::isModuleInfo);
         for (var declaration : declarations) {
           //  <module>/<realm>/.../module-info.java
           var relative = sources.relativize(declaration);
@@ -381,12 +637,44 @@ public class Bach {
           var descriptor = Modules.parseDeclaration(declaration);
           assert module.equals(descriptor.name()) : module + " expected, but got: " + descriptor;
           descriptors.put(module, descriptor);
+          roots.put(module, declaration.getParent());
           var offset = relative.subpath(1, relative.getNameCount() - 1).toString();
           moduleSourcePaths.add(String.join(File.separator, sources.toString(), "*", offset));
         }
         this.moduleSourcePath = String.join(File.pathSeparator, moduleSourcePaths);
         this.declaredModules = Collections.unmodifiableMap(descriptors);
+        this.declaredSources = Collections.unmodifiableMap(roots);
         this.externalModules = Modules.findExternalModuleNames(descriptors.values());
+        this.target = configuration.path(Property.PATH_TARGET).resolve(name);
+      }
+
+      /** Directory containing compiled classes, one subdirectory per module. */
+      Path classes() {
+        return target.resolve("classes");
+      }
+
+      /** Directory containing modular jar files. */
+      Path modules() {
+        return target.resolve("modules");
+      }
+
+      /** Resources directory of the given module, which may not exist. */
+      Path resources(String module) {
+        return declaredSources.get(module).resolveSibling("resources");
+      }
+
+      /** Modular jar file of the given module. */
+      Path jar(String module) {
+        return modules().resolve(module + '-' + version + ".jar");
+      }
+
+      /** Existing directories to be put on the module path when compiling this realm. */
+      abstract List<Path> modulePath();
+
+      /** Library directory of the given realm, if it exists. */
+      Optional<Path> library(String realm) {
+        var directory = configuration.path(Property.PATH_LIBRARY).resolve(realm);
+        return Files.isDirectory(directory) ? Optional.of(directory) : Optional.empty();
       }
     }
 
@@ -395,6 +683,11 @@ public class Bach {
       MainRealm() {
         super("main");
       }
+
+      @Override
+      List<Path> modulePath() {
+        return library(name).stream().collect(Collectors.toList());
+      }
     }
 
     class TestRealm extends Realm {
@@ -405,32 +698,231 @@ public class Bach {
         super("test");
         this.main = main;
       }
+
+      @Override
+      List<Path> modulePath() {
+        var paths = new ArrayList<Path>();
+        paths.add(main.modules());
+        if ("directory".equals(configuration.get(Property.PACKAGE_MODE))) {
+          paths.add(main.classes());
+        }
+        main.library(main.name).ifPresent(paths::add);
+        library(name).ifPresent(paths::add);
+        return paths;
+      }
+    }
+  }
+
+  /**
+   * Registry of tool providers, discovered once instead of on every tool run.
+   *
+   * <p>Providers of the Java runtime, like {@code javac} and {@code jar}, create a new tool
+   * instance for every run and are therefore reused. Instances of other providers, like plugins,
+   * may keep state between runs: a new one is created for each lookup.
+   *
+   * <p>Runs of {@code jlink} in one virtual machine share global state and fail when they overlap,
+   * with "stream has already been operated upon or closed": its runs are serialized.
+   */
+  static class ToolProviders {
+
+    /** Names of runtime tools that must not run concurrently in one virtual machine. */
+    static final Set<String> SERIAL = Set.of("jlink");
+
+    /** Lock held by runs of tools named in {@link #SERIAL}, shared by all registries. */
+    private static final ReentrantLock SERIAL_LOCK = new ReentrantLock();
+
+    private final Map<String, ServiceLoader.Provider<ToolProvider>> providers =
+        new ConcurrentHashMap<>();
+    private final Map<String, ToolProvider> reusable = new ConcurrentHashMap<>();
+
+    /** Discover all tool providers visible to the given class loader. */
+    ToolProviders(ClassLoader loader) {
+      register(ServiceLoader.load(ToolProvider.class, loader));
+    }
+
+    /**
+     * Register all providers of the given service loader, like one of a plugin's module layer.
+     *
+     * <p>Providers already registered under the same name take precedence.
+     */
+    void register(ServiceLoader<ToolProvider> loader) {
+      loader.stream().forEach(this::register);
+    }
+
+    private void register(ServiceLoader.Provider<ToolProvider> provider) {
+      var tool = provider.get();
+      if (providers.putIfAbsent(tool.name(), provider) != null) {
+        return;
+      }
+      var module = provider.type().getModule();
+      if (module.isNamed() && Modules.findSystemModuleNames().contains(module.getName())) {
+        reusable.put(tool.name(), SERIAL.contains(tool.name()) ? serial(tool) : tool);
+      }
+    }
+
+    /** Wrap the given tool into one that waits for other runs of serial tools to complete. */
+    private static ToolProvider serial(ToolProvider tool) {
+      return new ToolProvider() {
+        @Override
+        public String name() {
+          return tool.name();
+        }
+
+        @Override
+        public int run(PrintWriter out, PrintWriter err, String... args) {
+          SERIAL_LOCK.lock();
+          try {
+            return tool.run(out, err, args);
+          } finally {
+            SERIAL_LOCK.unlock();
+          }
+        }
+
+        @Override
+        public String toString() {
+          return tool.toString();
+        }
+      };
+    }
+
+    /** Find a tool provider by its name. */
+    Optional<ToolProvider> find(String name) {
+      var tool = reusable.get(name);
+      if (tool != null) {
+        return Optional.of(tool);
+      }
+      return Optional.ofNullable(providers.get(name)).map(ServiceLoader.Provider::get);
+    }
+
+    /** Return {@code true} if a tool provider of the given name is registered. */
+    boolean contains(String name) {
+      return providers.containsKey(name);
+    }
+
+    /** Sorted names of all registered tools. */
+    List<String> names() {
+      return providers.keySet().stream().sorted().collect(Collectors.toList());
     }
   }
 
   /** Tool-invoking dispatcher. */
   class Runner {
 
+    /** Maximum length of a command line, based on the limit of Windows' {@code cmd.exe}. */
+    static final int COMMAND_LINE_LIMIT = 8191;
+
+    /** Tool providers available to run in-process. */
+    final ToolProviders providers =
+        new ToolProviders(Thread.currentThread().getContextClassLoader());
+
+    /** Names of tools that were run in-process. */
+    final Set<String> inProcess = new ConcurrentSkipListSet<>();
+
+    /** Names of tools that were run in new processes. */
+    final Set<String> forked = new ConcurrentSkipListSet<>();
+
+    /** Launch profiles of forked {@code java} processes. */
+    final LaunchProfiles profiles = new LaunchProfiles();
+
+    /** Nanoseconds spent in runs nested in the current run of this thread. */
+    private final ThreadLocal<long[]> nested = ThreadLocal.withInitial(() -> new long[1]);
+
+    /** Names of forked tools that read arguments from {@code @file}s. */
+    final Set<String> argumentFileTools =
+        Set.of("jar", "java", "javac", "javadoc", "jdeps", "jlink", "jmod", "jpackage");
+
+    /** Run named tool with options and operands, in batches if the command line is too long. */
+    int run(String name, List<?> options, List<?> operands) {
+      var limit = COMMAND_LINE_LIMIT - length(options) - name.length();
+      if (!forks(name) || argumentFileTools.contains(name) || length(operands) <= limit) {
+        var arguments = new ArrayList<Object>(options);
+        arguments.addAll(operands);
+        return run(name, arguments.toArray(Object[]::new));
+      }
+      var batch = new ArrayList<Object>(options);
+      var length = 0;
+      for (int i = 0; i < operands.size(); i++) {
+        var operand = operands.get(i);
+        batch.add(operand);
+        length += operand.toString().length() + 1;
+        var last = i == operands.size() - 1;
+        if (last || length + operands.get(i + 1).toString().length() + 1 > limit) {
+          log(DEBUG, "Running %s with a batch of %d operands", name, batch.size() - options.size());
+          var code = run(name, batch.toArray(Object[]::new));
+          if (code != 0) {
+            return code;
+          }
+          batch = new ArrayList<>(options);
+          length = 0;
+        }
+      }
+      return 0;
+    }
+
     /** Run named tool with specified arguments returning an error code. */
     int run(String name, Object... arguments) {
       log(INFO, ">> %s(%s)", name, Util.join(arguments));
+      return time(name, () -> dispatch(name, arguments));
+    }
+
+    /** Run given tool in-process, its output is handled like the one of a provided tool. */
+    int run(ToolProvider tool, Object... arguments) {
+      var name = tool.name();
+      log(INFO, ">> %s(%s)", name, Util.join(arguments));
+      return time(
+          name,
+          () -> {
+            inProcess.add(name);
+            return console.run(name, tool, Util.strings(arguments));
+          });
+    }
+
+    /**
+     * Run and record the self-time of a tool: runs of other tools nested in it, like {@code javac}
+     * in {@code build}, are recorded under their own names only.
+     */
+    private int time(String name, IntSupplier run) {
+      var children = nested.get();
+      var outer = children[0];
+      children[0] = 0;
+      var start = System.nanoTime();
+      try {
+        return run.getAsInt();
+      } finally {
+        var duration = System.nanoTime() - start;
+        history.count("tool." + name, (duration - children[0]) / 1_000_000);
+        children[0] = outer + duration;
+      }
+    }
+
+    /** Return {@code true} if running the named tool starts a new process. */
+    boolean forks(String name) {
+      return !configuration.basic.tools().containsKey(name)
+          && !providers.contains(name)
+          && !Tool.API.containsKey(name);
+    }
 
+    /** Find tool by its name and run it. */
+    private int dispatch(String name, Object... arguments) {
       var configuredTool = configuration.basic.tools().get(name);
       if (configuredTool != null) {
         log(DEBUG, "Running configured tool named '%s'...", configuredTool.name());
+        inProcess.add(name);
         return configuredTool.run(Bach.this);
       }
 
-      var providedTool = ToolProvider.findFirst(name);
+      var providedTool = providers.find(name);
       if (providedTool.isPresent()) {
         var tool = providedTool.get();
         log(DEBUG, "Running provided tool: %s", tool);
-        return tool.run(out, err, Util.strings(arguments));
+        inProcess.add(name);
+        return console.run(name, tool, Util.strings(arguments));
       }
 
       var apiTool = Tool.API.get(name);
       if (apiTool != null) {
         log(DEBUG, "Running API tool named %s", apiTool.name());
+        inProcess.add(name);
         return apiTool.run(Bach.this);
       }
 
@@ -438,23 +930,81 @@ public class Bach {
       var javaExecutable = Util.findExecutable(List.of(javaBinaries), name);
       if (javaExecutable.isPresent()) {
         var processBuilder = new ProcessBuilder(javaExecutable.get().toString());
-        processBuilder.command().addAll(List.of(Util.strings(arguments)));
+        var strings = List.of(Util.strings(arguments));
+        var launch = name.equals("java") ? profiles.launch(strings) : null;
+        if (launch != null) {
+          var profile = launch.tuned ? "tuned" : "default";
+          log(DEBUG, "Launching %s with %s profile %s", launch.tool, profile, launch.options);
+          processBuilder.command().addAll(launch.options);
+        }
+        var argumentFile = Optional.<Path>empty();
+        if (argumentFileTools.contains(name) && length(strings) > COMMAND_LINE_LIMIT) {
+          argumentFile = Optional.of(writeArgumentFile(name, strings));
+          processBuilder.command().add("@" + argumentFile.get());
+        } else {
+          processBuilder.command().addAll(strings);
+        }
         processBuilder.environment().put("BACH_VERSION", Bach.VERSION);
         processBuilder.environment().put("BACH_HOME", configuration.home.toString());
         processBuilder.environment().put("BACH_WORK", configuration.work.toString());
         log(DEBUG, "Starting new process: %s", processBuilder);
-        return run(configuration.basic.redirectIO().apply(processBuilder));
+        forked.add(name);
+        var start = System.nanoTime();
+        try {
+          return run(configuration.basic.redirectIO().apply(processBuilder));
+        } finally {
+          argumentFile.ifPresent(Util::deleteIfExists);
+          if (launch != null) {
+            launch.record((System.nanoTime() - start) / 1_000_000);
+            launch.release();
+          }
+        }
       }
 
       log(ERROR, "Unknown tool '%s', returning non-zero error code", name);
       return 42;
     }
 
+    /** Compute the length of the given arguments joined by single spaces. */
+    int length(List<?> arguments) {
+      return arguments.stream().mapToInt(argument -> argument.toString().length() + 1).sum();
+    }
+
+    /** Write each argument quoted on its own line into a new file in the work directory. */
+    Path writeArgumentFile(String name, List<String> arguments) {
+      var lines = new ArrayList<String>();
+      for (var argument : arguments) {
+        lines.add('"' + argument.replace("\\", "\\\\").replace("\"", "\\\"") + '"');
+      }
+      try {
+        var directory = Files.createDirectories(configuration.work.resolve(".bach/arguments"));
+        var file = Files.createTempFile(directory, name + '-', ".arguments");
+        log(DEBUG, "Writing %d arguments to %s", arguments.size(), file);
+        return Files.write(file, lines);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Writing argument file failed!", e);
+      }
+    }
+
     /** Start new process and wait for its termination. */
     int run(ProcessBuilder processBuilder) {
       try {
         var process = processBuilder.start();
-        var code = process.waitFor();
+        var piped = processBuilder.redirectOutput() == ProcessBuilder.Redirect.PIPE;
+        var capture = piped ? console.capture(processBuilder.command().get(0), process) : null;
+        int code;
+        try {
+          code = process.waitFor();
+        } catch (Exception e) {
+          process.destroy();
+          if (capture != null) {
+            capture.cancel(); // don't block tasks started later
+          }
+          throw e;
+        }
+        if (capture != null) {
+          capture.finish(code);
+        }
         if (code == 0) {
           log(DEBUG, "Process '%s' successfully terminated.", process);
         }
@@ -465,167 +1015,3525 @@ public class Bach {
     }
   }
 
-  /** Download helper. */
-  class Downloader {
-    final Path destination;
+  /**
+   * Launch profiles of forked {@code java} processes, learned from recorded durations.
+   *
+   * <p>Default JVM ergonomics suit long-running applications, not tools that exit after a few
+   * seconds, like the formatter or a test launcher. The tuned profile adds options that favor
+   * startup and, on Java 13 or later, a class data sharing archive per tool, which is dumped by the
+   * first tuned launch. Each launch records its duration as {@code fork.<tool>.default} or {@code
+   * fork.<tool>.tuned}. In adaptive mode the profile with the lower median duration is picked, the
+   * other one is launched again when it wasn't in the last {@link History#WINDOW} builds.
+   */
+  class LaunchProfiles {
 
-    Downloader(Path destination) {
-      this.destination = destination;
-    }
+    /** Options of the java launcher that take a separate value. */
+    final Set<String> optionsWithValue =
+        Set.of(
+            "-cp",
+            "-classpath",
+            "--class-path",
+            "-p",
+            "--module-path",
+            "--upgrade-module-path",
+            "--add-modules",
+            "--limit-modules",
+            "--add-reads",
+            "--add-exports",
+            "--add-opens",
+            "--patch-module",
+            "--source");
 
-    /** Download an artifact from a Maven 2 repository specified by its GAV coordinates. */
-    Path download(String group, String artifact, String version) {
-      log(TRACE, "Downloader::download(%s, %s, %s)", group, artifact, version);
-      var host = "https://repo1.maven.org/maven2";
-      var path = group.replace('.', '/');
-      var file = artifact + '-' + version + ".jar";
-      var uri = URI.create(String.join("/", host, path, artifact, version, file));
-      return download(uri, Boolean.getBoolean("bach.offline"));
-    }
+    private List<Map<String, Long>> records;
 
-    /** Download a file denoted by the specified uri. */
-    Path download(URI uri, boolean offline) {
-      log(TRACE, "Downloader::download(%s)", uri);
+    /** Select the profile launching the tool of the given arguments, {@code null} if none. */
+    Launch launch(List<String> arguments) {
+      var main = main(arguments);
+      if (main < 0) {
+        return null;
+      }
+      var tool = tool(arguments.get(main));
+      var mode = configuration.get(Property.JAVA_PROFILE);
+      boolean tuned;
+      switch (mode) {
+        case "default":
+          tuned = false;
+          break;
+        case "tuned":
+          tuned = true;
+          break;
+        case "adaptive":
+          tuned = adapt(tool);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown launch profile: " + mode);
+      }
+      if (!tuned) {
+        return new Launch(tool, false, List.of(), null, null, null);
+      }
+      var options = new ArrayList<>(configuration.lines(Property.OPTIONS_JAVA_TUNED));
+      if (Runtime.version().feature() < 13) {
+        return new Launch(tool, true, options, null, null, null);
+      }
+      var launcher = String.join(" ", arguments.subList(0, main + 1));
+      var version = Runtime.version().toString().replaceAll("[^\\w.-]", "_");
+      var name = tool + '-' + Integer.toHexString(launcher.hashCode()) + '-' + version + ".jsa";
+      var cds = configuration.path(Property.PATH_CACHE).resolve("cds");
+      var archive = cds.resolve(name);
       try {
-        var fileName = extractFileName(uri);
-        var target = Files.createDirectories(destination).resolve(fileName);
-        var url = uri.toURL(); // fails for non-absolute uri
-        if (offline) {
-          log(DEBUG, "Offline mode is active!");
-          if (Files.exists(target)) {
-            var file = target.getFileName().toString();
-            log(DEBUG, "Target already exists: %s, %d bytes.", file, Files.size(target));
-            return target;
+        Files.createDirectories(cds);
+        if (Files.notExists(archive)) {
+          // single-flight: one launch dumps the archive, concurrent ones run without it
+          var lock = Util.tryLock(cds.resolve(name + ".lock"));
+          if (lock == null) {
+            return new Launch(tool, true, options, null, null, null);
           }
-          var message = "Offline mode is active and target is missing: " + target;
-          log(ERROR, message);
-          throw new IllegalStateException(message);
+          if (Files.notExists(archive)) {
+            var dump = cds.resolve(name + ".part"); // evicted only with the archive's lock
+            Files.deleteIfExists(dump);
+            options.add("-XX:ArchiveClassesAtExit=" + dump);
+            return new Launch(tool, true, options, archive, dump, lock);
+          }
+          lock.close();
+        }
+        var cache = new Cache();
+        var lock = cache.use(archive);
+        if (Files.notExists(archive)) {
+          lock.close(); // evicted while waiting for the lock
+          return new Launch(tool, true, options, null, null, null);
         }
-        return download(uri, url.openConnection());
+        cache.touch(archive);
+        options.add("-XX:SharedArchiveFile=" + archive);
+        return new Launch(tool, true, options, archive, null, lock);
       } catch (IOException e) {
-        throw new UncheckedIOException("Download failed!", e);
+        throw new UncheckedIOException("Locking archive failed: " + archive, e);
       }
     }
 
-    /** Download a file using the given URL connection. */
-    Path download(URI uri, URLConnection connection) throws IOException {
-      var millis = connection.getLastModified(); // 0 means "unknown"
-      var lastModified = FileTime.fromMillis(millis == 0 ? System.currentTimeMillis() : millis);
-      log(TRACE, "Remote was modified on %s", lastModified);
-      var target = destination.resolve(extractFileName(connection));
-      log(TRACE, "Local target file is %s", target.toUri());
-      var file = target.getFileName().toString();
-      if (Files.exists(target)) {
-        var fileModified = Files.getLastModifiedTime(target);
-        log(TRACE, "Local last modified on %s", fileModified);
-        if (fileModified.equals(lastModified)) {
-          log(TRACE, "Timestamp match: %s, %d bytes.", file, Files.size(target));
-          connection.getInputStream().close(); // release all opened resources
-          return target;
+    /** Return the index of the main jar, module or class, or -1 if no tool is launched. */
+    int main(List<String> arguments) {
+      for (int i = 0; i < arguments.size(); i++) {
+        var argument = arguments.get(i);
+        if (argument.equals("-jar") || argument.equals("-m") || argument.equals("--module")) {
+          return i + 1 < arguments.size() ? i + 1 : -1;
         }
-        log(DEBUG, "Local target file differs from remote source -- replacing it...");
-      }
-      log(INFO, ">> download(%s)", uri);
-      try (var sourceStream = connection.getInputStream()) {
-        try (var targetStream = Files.newOutputStream(target)) {
-          sourceStream.transferTo(targetStream);
+        if (optionsWithValue.contains(argument)) {
+          i++;
+          continue;
+        }
+        if (!argument.startsWith("-") && !argument.startsWith("@")) {
+          return i;
         }
-        Files.setLastModifiedTime(target, lastModified);
       }
-      log(DEBUG, "Downloaded %s [%d bytes from %s]", file, Files.size(target), lastModified);
-      return target;
+      return -1;
     }
 
-    /** Extract last path element from the supplied uri. */
-    String extractFileName(URI uri) {
-      var path = uri.getPath(); // strip query and fragment elements
-      return path.substring(path.lastIndexOf('/') + 1);
+    /** Name of the tool, derived from the file name of its jar, its module or its class. */
+    String tool(String main) {
+      var name = main.endsWith(".jar") ? Path.of(main).getFileName().toString() : main;
+      name = name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name;
+      return name.replaceAll("[^\\w.-]", "_");
     }
 
-    /** Extract target file name either from 'Content-Disposition' header or. */
-    String extractFileName(URLConnection connection) {
-      var contentDisposition = connection.getHeaderField("Content-Disposition");
-      if (contentDisposition != null && contentDisposition.indexOf('=') > 0) {
-        return contentDisposition.split("=")[1].replaceAll("\"", "");
+    /** Return {@code true} if the tuned profile should be used to launch the given tool. */
+    boolean adapt(String tool) {
+      var records = records();
+      var recent = records.subList(Math.max(0, records.size() - History.WINDOW), records.size());
+      var standard = "fork." + tool + ".default";
+      var tuned = "fork." + tool + ".tuned";
+      if (recent.stream().noneMatch(record -> record.containsKey(standard))) {
+        return false;
       }
-      try {
-        return extractFileName(connection.getURL().toURI());
-      } catch (URISyntaxException e) {
-        throw new Error("URL connection returned invalid URL?!", e);
+      if (recent.stream().noneMatch(record -> record.containsKey(tuned))) {
+        return true;
       }
+      return history.median(records, tuned) < history.median(records, standard);
     }
-  }
-
-  /** Format Java source files. */
-  class Formatter {
 
-    /** Run format. */
-    int format(Object... args) {
-      log(TRACE, "format(%s)", Util.join(args));
-      var uri = configuration.uri(Property.URI_TOOL_FORMAT);
-      var downloader = new Downloader(USER_HOME.resolve(".bach/tool/format"));
-      var jar = downloader.download(uri, Boolean.getBoolean("bach.offline"));
-      var arguments = new ArrayList<>();
-      arguments.add("-jar");
-      arguments.add(jar);
-      arguments.addAll(List.of(args));
-      return runner.run("java", arguments.toArray(Object[]::new));
+    private synchronized List<Map<String, Long>> records() {
+      if (records == null) {
+        records = history.records();
+      }
+      return records;
     }
 
-    /** Run format. */
-    int format(Iterable<Path> roots, boolean replace) {
-      var files = Util.find(roots, Util::isJavaFile);
-      if (files.isEmpty()) {
-        return 0;
+    /** Selected profile of a single launch. */
+    class Launch {
+      final String tool;
+      final boolean tuned;
+      final List<String> options;
+      /** Class data sharing archive used or created, {@code null} if none. */
+      final Path archive;
+      /** Partial file the launched process dumps the archive into at exit, {@code null} if none. */
+      final Path dump;
+      /** Shared lock on the used archive or exclusive lock on the one being created. */
+      final Util.Lock lock;
+
+      Launch(
+          String tool,
+          boolean tuned,
+          List<String> options,
+          Path archive,
+          Path dump,
+          Util.Lock lock) {
+        this.tool = tool;
+        this.tuned = tuned;
+        this.options = options;
+        this.archive = archive;
+        this.dump = dump;
+        this.lock = lock;
+      }
+
+      /** Record the duration of this launch in the build history. */
+      void record(long millis) {
+        history.count("fork." + tool + (tuned ? ".tuned" : ".default"), millis);
+      }
+
+      /** Release the archive, moving the one dumped by the exited process into place first. */
+      void release() {
+        if (lock == null) {
+          return;
+        }
+        try {
+          if (dump != null && Files.isRegularFile(dump) && Files.size(dump) > 0) {
+            // no other launch creates or evicts the archive while the exclusive lock is held
+            Files.move(dump, archive, StandardCopyOption.ATOMIC_MOVE);
+            new Cache().touch(archive);
+            log(DEBUG, "Created class data sharing archive %s", archive);
+          }
+        } catch (IOException e) {
+          log(DEBUG, "Installing class data sharing archive %s failed: %s", archive, e);
+        } finally {
+          if (dump != null) {
+            Util.deleteIfExists(dump);
+          }
+          try {
+            lock.close();
+          } catch (IOException e) {
+            log(WARNING, "Releasing lock of %s failed: %s", archive, e);
+          }
+        }
       }
-      var args = new ArrayList<>();
-      args.addAll(replace ? List.of("--replace") : List.of("--dry-run", "--set-exit-if-changed"));
-      args.addAll(files);
-      return format(args.toArray(Object[]::new));
     }
   }
 
-  /** Custom tool interface. */
-  @FunctionalInterface
-  public interface Tool {
+  /** Sequencer printing captured output of tasks in the order they were started. */
+  class Console {
 
-    /** Default tools. */
-    Map<String, Tool> API =
-        Map.of("format", Bach::format, "help", Bach::help, "version", Bach::version);
+    /** Number of trailing lines printed when a task failed. */
+    static final int TAIL = 25;
 
-    /** Tools provided by the Java runtime. */
-    List<String> PROVIDED =
-        ServiceLoader.load(ToolProvider.class).stream()
-            .map(ServiceLoader.Provider::get)
-            .map(ToolProvider::name)
-            .sorted()
-            .collect(Collectors.toList());
+    final Path logs;
+    private final AtomicInteger tickets = new AtomicInteger();
+    private final AtomicInteger streams = new AtomicInteger();
+    private int next = 0;
 
-    default String name() {
-      return getClass().getName();
+    Console(Path logs) {
+      this.logs = logs;
     }
 
-    int run(Bach bach);
-  }
-
-  /** Static helpers handling modules. */
-  static class Modules {
+    /** Start pumping standard output and error streams of the given process. */
+    Capture capture(String command, Process process) throws IOException {
+      var name = Path.of(command).getFileName().toString();
+      Files.createDirectories(logs);
+      var ticket = tickets.getAndIncrement();
+      Capture capture;
+      try {
+        capture = new Capture(ticket, name, logs.resolve(ticket + "-" + name + ".log"));
+      } catch (IOException e) {
+        new Thread(() -> skip(ticket)).start();
+        throw e;
+      }
+      capture.pump("out", process.getInputStream());
+      capture.pump("err", process.getErrorStream());
+      return capture;
+    }
 
-    private static final Pattern MODULE_NAME_PATTERN = Pattern.compile("(?:module)\\s+(.+)\\s*\\{");
-    private static final Pattern MODULE_REQUIRES_PATTERN =
-        Pattern.compile(
-            "(?:requires)" // key word
-                + "(?:\\s+[\\w.]+)?" // optional modifiers
-                + "\\s+([\\w.]+)" // module name
+    /**
+     * Run an in-process tool with its own writers, so that it can run concurrently with others.
+     *
+     * <p>In {@code buffered} output mode, the output is printed when the tool finished and all
+     * tasks started before it were printed. In {@code prefixed} mode, each line is printed as soon
+     * as it is complete, prefixed with the name of the tool and a running number.
+     */
+    int run(String name, ToolProvider tool, String... args) {
+      var mode = configuration.get(Property.TOOL_OUTPUT);
+      if (mode.equals("prefixed")) {
+        var prefix = "[" + name + "#" + streams.getAndIncrement() + "] ";
+        try (var toolOut = new PrintWriter(new PrefixWriter(prefix, out));
+            var toolErr = new PrintWriter(new PrefixWriter(prefix, err))) {
+          return tool.run(toolOut, toolErr, args);
+        }
+      }
+      if (!mode.equals("buffered")) {
+        throw new IllegalArgumentException("Unknown tool output mode: " + mode);
+      }
+      var ticket = tickets.getAndIncrement();
+      var bufferedOut = new StringWriter();
+      var bufferedErr = new StringWriter();
+      try {
+        return tool.run(new PrintWriter(bufferedOut), new PrintWriter(bufferedErr), args);
+      } finally {
+        try {
+          await(ticket);
+          out.print(bufferedOut);
+          out.flush();
+          err.print(bufferedErr);
+          err.flush();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          advance();
+        }
+      }
+    }
+
+    /** Block until all tasks started before the given ticket were printed. */
+    private synchronized void await(int ticket) throws InterruptedException {
+      while (next != ticket) {
+        wait();
+      }
+    }
+
+    /** Mark the current ticket as printed. */
+    private synchronized void advance() {
+      next++;
+      notifyAll();
+    }
+
+    /** Wait for the turn of the given ticket and pass it on without printing anything. */
+    private void skip(int ticket) {
+      try {
+        await(ticket);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        advance();
+      }
+    }
+
+    /** Writer printing each complete line with a prefix, lines of concurrent tools don't mix. */
+    class PrefixWriter extends Writer {
+
+      final String prefix;
+      final PrintWriter target;
+      private final StringBuilder line = new StringBuilder();
+
+      PrefixWriter(String prefix, PrintWriter target) {
+        this.prefix = prefix;
+        this.target = target;
+      }
+
+      @Override
+      public synchronized void write(char[] chars, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+          var c = chars[i];
+          if (c == '\n') {
+            target.println(prefix + line);
+            line.setLength(0);
+          } else if (c != '\r') {
+            line.append(c);
+          }
+        }
+      }
+
+      @Override
+      public synchronized void flush() {
+        target.flush();
+      }
+
+      @Override
+      public synchronized void close() {
+        if (line.length() > 0) {
+          target.println(prefix + line);
+          line.setLength(0);
+        }
+        flush();
+      }
+    }
+
+    /** Output of a single task spooled to a log file with its tail kept in memory. */
+    class Capture {
+      final int ticket;
+      final String name;
+      final Path log;
+      private final ArrayDeque<String> tail = new ArrayDeque<>();
+      private final List<Thread> pumps = new ArrayList<>();
+      private final PrintWriter spool;
+
+      Capture(int ticket, String name, Path log) throws IOException {
+        this.ticket = ticket;
+        this.name = name;
+        this.log = log;
+        this.spool = new PrintWriter(Files.newBufferedWriter(log));
+      }
+
+      /** Start a daemon thread transferring lines of the given stream. */
+      void pump(String stream, InputStream source) {
+        var thread =
+            new Thread(
+                () -> {
+                  try (var reader = new BufferedReader(new InputStreamReader(source))) {
+                    reader.lines().forEach(this::accept);
+                  } catch (IOException | UncheckedIOException e) {
+                    accept("Pumping " + stream + " failed: " + e);
+                  }
+                },
+                "bach-" + name + "-" + ticket + "-" + stream);
+        thread.setDaemon(true);
+        thread.start();
+        pumps.add(thread);
+      }
+
+      private synchronized void accept(String line) {
+        spool.println(line);
+        if (tail.size() == TAIL) {
+          tail.removeFirst();
+        }
+        tail.addLast(line);
+      }
+
+      /** Pass this task's turn on without printing its output. */
+      void cancel() {
+        new Thread(() -> skip(ticket)).start();
+      }
+
+      /** Drain all pumps and print the output when it's this task's turn. */
+      void finish(int code) throws Exception {
+        try {
+          await(ticket);
+        } catch (InterruptedException e) {
+          cancel();
+          throw e;
+        }
+        try {
+          for (var pump : pumps) {
+            pump.join();
+          }
+          synchronized (this) {
+            spool.close();
+          }
+          if (code == 0) {
+            try (var lines = Files.lines(log)) {
+              lines.forEach(out::println);
+            }
+            return;
+          }
+          log(ERROR, "%s failed with exit code %d, last lines of %s:", name, code, log.toUri());
+          synchronized (this) {
+            tail.forEach(err::println);
+          }
+        } finally {
+          advance();
+        }
+      }
+    }
+  }
+
+  /** Download helper. */
+  class Downloader {
+
+    /** Minimum number of bytes of an artifact to download it in parallel segments. */
+    static final long SEGMENT_THRESHOLD = 16 * 1024 * 1024;
+
+    /** Number of parallel segments of large artifacts. */
+    static final int SEGMENTS = 4;
+
+    final Path destination;
+    long segmentThreshold = SEGMENT_THRESHOLD;
+
+    Downloader(Path destination) {
+      this.destination = destination;
+    }
+
+    /** Download an artifact from a Maven 2 repository specified by its GAV coordinates. */
+    Path download(String group, String artifact, String version) {
+      log(TRACE, "Downloader::download(%s, %s, %s)", group, artifact, version);
+      var uri =
+          Modules.maven(configuration.get(Property.URI_MAVEN_REPOSITORY), group, artifact, version);
+      return download(uri, Boolean.getBoolean("bach.offline"));
+    }
+
+    /** Download a file denoted by the specified uri. */
+    Path download(URI uri, boolean offline) {
+      log(TRACE, "Downloader::download(%s)", uri);
+      try {
+        var fileName = extractFileName(uri);
+        var target = Files.createDirectories(destination).resolve(fileName);
+        var url = uri.toURL(); // fails for non-absolute uri
+        if (offline) {
+          log(DEBUG, "Offline mode is active!");
+          if (Files.exists(target)) {
+            var file = target.getFileName().toString();
+            log(DEBUG, "Target already exists: %s, %d bytes.", file, Files.size(target));
+            history.count("download.hits", 1);
+            return touch(target);
+          }
+          var message = "Offline mode is active and target is missing: " + target;
+          log(ERROR, message);
+          throw new IllegalStateException(message);
+        }
+        // single-flight: one thread of one process downloads, all others wait and reuse the file
+        try (var lock = Util.lock(destination.resolve(fileName + ".lock"))) {
+          if (lock.contended && Files.exists(target)) {
+            log(DEBUG, "Reusing %s downloaded concurrently", fileName);
+            history.count("download.hits", 1);
+            return touch(target);
+          }
+          return touch(download(uri, url.openConnection()));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Download failed!", e);
+      }
+    }
+
+    /** Record the access of the given file, if it is stored in the shared cache. */
+    private Path touch(Path file) {
+      new Cache().touch(file);
+      return file;
+    }
+
+    /**
+     * Download a file using the given URL connection.
+     *
+     * <p>Bytes are written to a {@code .part} file that is moved to the target file when the
+     * transfer is complete. A partial file left by an interrupted transfer is resumed with an HTTP
+     * range request, if the remote file didn't change. Large files are downloaded in parallel
+     * segments, if the server accepts range requests.
+     */
+    Path download(URI uri, URLConnection connection) throws IOException {
+      var part = destination.resolve(extractFileName(uri) + ".part");
+      var resume = Files.isRegularFile(part) ? Files.size(part) : 0;
+      if (resume > 0 && connection instanceof HttpURLConnection) {
+        var time = Files.getLastModifiedTime(part).toInstant().atOffset(ZoneOffset.UTC);
+        connection.setRequestProperty("Range", "bytes=" + resume + "-");
+        connection.setRequestProperty("If-Range", RFC_1123_DATE_TIME.format(time));
+      }
+      var millis = connection.getLastModified(); // 0 means "unknown"
+      var lastModified = FileTime.fromMillis(millis == 0 ? System.currentTimeMillis() : millis);
+      log(TRACE, "Remote was modified on %s", lastModified);
+      var target = destination.resolve(extractFileName(connection));
+      log(TRACE, "Local target file is %s", target.toUri());
+      var file = target.getFileName().toString();
+      if (Files.exists(target)) {
+        var fileModified = Files.getLastModifiedTime(target);
+        log(TRACE, "Local last modified on %s", fileModified);
+        if (fileModified.equals(lastModified)) {
+          log(TRACE, "Timestamp match: %s, %d bytes.", file, Files.size(target));
+          connection.getInputStream().close(); // release all opened resources
+          history.count("download.hits", 1);
+          return target;
+        }
+        log(DEBUG, "Local target file differs from remote source -- replacing it...");
+      }
+      log(INFO, ">> download(%s)", uri);
+      var length = connection.getContentLengthLong(); // -1 means unknown
+      var range = Objects.toString(connection.getHeaderField("Content-Range"), "");
+      var http = connection instanceof HttpURLConnection;
+      var code = http ? ((HttpURLConnection) connection).getResponseCode() : 200;
+      if (code == 206 && range.startsWith("bytes " + resume + "-")) {
+        log(DEBUG, "Resuming download of %s at byte %d", file, resume);
+        history.count("download.resumed", 1);
+        transfer(connection, part, lastModified, StandardOpenOption.APPEND);
+        length = length < 0 ? -1 : resume + length;
+      } else if (http
+          && length >= segmentThreshold
+          && "bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
+        segments((HttpURLConnection) connection, part, length);
+      } else {
+        transfer(connection, part, lastModified, StandardOpenOption.TRUNCATE_EXISTING);
+      }
+      if (length >= 0 && Files.size(part) != length) {
+        var message = "Expected %d bytes, but got %d: %s";
+        throw new IOException(String.format(message, length, Files.size(part), part));
+      }
+      Files.setLastModifiedTime(part, lastModified);
+      Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      history.count("download.misses", 1);
+      history.count("download.bytes", Files.size(target));
+      log(DEBUG, "Downloaded %s [%d bytes from %s]", file, Files.size(target), lastModified);
+      return target;
+    }
+
+    /** Write the response body to the partial file, stamping it with the remote time. */
+    private void transfer(URLConnection connection, Path part, FileTime time, OpenOption mode)
+        throws IOException {
+      try (var source = connection.getInputStream();
+          var target = Files.newOutputStream(part, StandardOpenOption.CREATE, mode)) {
+        source.transferTo(target);
+      } finally {
+        // an interrupted transfer is resumed only if the remote file still has this time
+        Files.setLastModifiedTime(part, time);
+      }
+    }
+
+    /**
+     * Download the body of the given connection in concurrent segments.
+     *
+     * <p>All segments start at once on worker threads. The first segment is read from the already
+     * opened connection, which is closed afterwards, all others via range requests that fail if the
+     * remote file changed in the meantime.
+     */
+    private void segments(HttpURLConnection connection, Path part, long length) throws IOException {
+      var size = (length + SEGMENTS - 1) / SEGMENTS;
+      var validator = connection.getHeaderField("ETag");
+      if (validator == null) {
+        validator = connection.getHeaderField("Last-Modified");
+      }
+      var condition = validator;
+      log(DEBUG, "Downloading %d bytes in %d segments of %d bytes", length, SEGMENTS, size);
+      var options = new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.WRITE};
+      try (var channel = FileChannel.open(part, options)) {
+        channel.truncate(0);
+        var tasks = new ArrayList<Runnable>();
+        tasks.add(
+            () -> {
+              try (var stream = connection.getInputStream()) {
+                write(channel, stream, 0, size);
+              } catch (IOException e) {
+                throw new UncheckedIOException("Downloading segment failed: 0", e);
+              } finally {
+                connection.disconnect(); // don't read or drain the rest of the body
+              }
+            });
+        for (int segment = 1; segment < SEGMENTS; segment++) {
+          var from = segment * size;
+          var to = Math.min(length, from + size) - 1;
+          var index = segment;
+          tasks.add(
+              () -> {
+                try {
+                  var request = (HttpURLConnection) connection.getURL().openConnection();
+                  request.setRequestProperty("Range", "bytes=" + from + "-" + to);
+                  if (condition != null) {
+                    request.setRequestProperty("If-Range", condition);
+                  }
+                  if (request.getResponseCode() != 206) {
+                    throw new IOException("Range request failed: " + request.getResponseCode());
+                  }
+                  try (var stream = request.getInputStream()) {
+                    write(channel, stream, from, to - from + 1);
+                  }
+                } catch (IOException e) {
+                  throw new UncheckedIOException("Downloading segment failed: " + index, e);
+                }
+              });
+        }
+        Util.concurrently(tasks);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(part); // a segmented file has holes and can't be resumed
+        throw e;
+      }
+      history.count("download.segments", SEGMENTS);
+    }
+
+    /** Copy the given number of bytes from the stream to the channel at the given position. */
+    private void write(FileChannel channel, InputStream stream, long position, long count)
+        throws IOException {
+      var buffer = new byte[8192];
+      while (count > 0) {
+        var read = stream.read(buffer, 0, (int) Math.min(buffer.length, count));
+        if (read < 0) {
+          throw new IOException("Premature end of stream, " + count + " bytes missing");
+        }
+        var wrapped = ByteBuffer.wrap(buffer, 0, read);
+        while (wrapped.hasRemaining()) {
+          position += channel.write(wrapped, position);
+        }
+        count -= read;
+      }
+    }
+
+    /** Extract last path element from the supplied uri. */
+    String extractFileName(URI uri) {
+      var path = uri.getPath(); // strip query and fragment elements
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /** Extract target file name either from 'Content-Disposition' header or. */
+    String extractFileName(URLConnection connection) {
+      var contentDisposition = connection.getHeaderField("Content-Disposition");
+      if (contentDisposition != null && contentDisposition.indexOf('=') > 0) {
+        return contentDisposition.split("=")[1].replaceAll("\"", "");
+      }
+      try {
+        return extractFileName(connection.getURL().toURI());
+      } catch (URISyntaxException e) {
+        throw new Error("URL connection returned invalid URL?!", e);
+      }
+    }
+  }
+
+  /** Format Java source files. */
+  class Formatter {
+
+    /** Download the formatter, if needed, and return the path to its jar file. */
+    Path jar() {
+      var uri = configuration.uri(Property.URI_TOOL_FORMAT);
+      var cache = configuration.path(Property.PATH_CACHE);
+      var downloader = new Downloader(cache.resolve("tool/format"));
+      return downloader.download(uri, Boolean.getBoolean("bach.offline"));
+    }
+
+    /** Run format. */
+    int format(Object... args) {
+      log(TRACE, "format(%s)", Util.join(args));
+      return java(List.of(args), List.of());
+    }
+
+    /** Run format. */
+    int format(Iterable<Path> roots, boolean replace) {
+      var files = Util.find(roots, Util::isJavaFile);
+      if (files.isEmpty()) {
+        return 0;
+      }
+      var options = replace ? List.of("--replace") : List.of("--dry-run", "--set-exit-if-changed");
+      return java(options, files);
+    }
+
+    /** Run the formatter's jar file, holding a shared lock on it so it isn't evicted meanwhile. */
+    private int java(List<?> options, List<?> operands) {
+      var cache = new Cache();
+      while (true) {
+        var jar = jar();
+        try (var lock = cache.use(jar)) {
+          if (lock.contended) {
+            log(DEBUG, "Waited for concurrent update of %s", jar);
+          }
+          if (Files.notExists(jar)) {
+            continue; // evicted before it was locked, download it again
+          }
+          var arguments = new ArrayList<Object>(List.of("-jar", jar));
+          arguments.addAll(options);
+          return runner.run("java", arguments, operands);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Locking formatter failed: " + jar, e);
+        }
+      }
+    }
+  }
+
+  /** Index of modules in jar files below the library directory, cached by jar file hashes. */
+  class Library {
+
+    final Path root;
+    final Path cache;
+    final Map<Path, Jar> jars;
+
+    Library() {
+      this(
+          configuration.path(Property.PATH_LIBRARY),
+          configuration.work.resolve(".bach/library.index"));
+    }
+
+    Library(Path root, Path cache) {
+      this.root = root;
+      this.cache = cache;
+      this.jars = index();
+    }
+
+    /** Indexed modular or automatic jar file. */
+    class Jar {
+      final Path path;
+      final long size;
+      final long time;
+      final String hash;
+      final ModuleDescriptor descriptor;
+      final byte[] moduleInfo; // empty for automatic modules
+
+      Jar(Path path, long size, long time, String hash, ModuleDescriptor descriptor, byte[] info) {
+        this.path = path;
+        this.size = size;
+        this.time = time;
+        this.hash = hash;
+        this.descriptor = descriptor;
+        this.moduleInfo = info;
+      }
+    }
+
+    /** Scan all jar files in parallel, reusing cached descriptors of unchanged files. */
+    private Map<Path, Jar> index() {
+      if (!Files.isDirectory(root)) {
+        return Map.of();
+      }
+      var cached = read();
+      var jars = new TreeMap<Path, Jar>();
+      var files = Util.find(List.of(root), Util::isJarFile);
+      Util.compute(
+              () ->
+                  files
+                      .parallelStream()
+                      .map(file -> jar(file, cached.get(file)))
+                      .collect(Collectors.toList()))
+          .forEach(jar -> jars.put(jar.path, jar));
+      if (!jars.keySet().equals(cached.keySet())
+          || jars.values().stream().anyMatch(jar -> cached.get(jar.path) != jar)) {
+        write(jars.values());
+      }
+      return Collections.unmodifiableMap(jars);
+    }
+
+    /** Return cached jar if its size and time or its hash match, otherwise read it. */
+    private Jar jar(Path file, Jar cached) {
+      try {
+        var size = Files.size(file);
+        var time = Files.getLastModifiedTime(file).toMillis();
+        if (cached != null && cached.size == size && cached.time == time) {
+          history.count("library.hits", 1);
+          return cached;
+        }
+        var hash = Util.sha256(file);
+        if (cached != null && cached.hash.equals(hash)) {
+          history.count("library.hits", 1);
+          return new Jar(file, size, time, hash, cached.descriptor, cached.moduleInfo);
+        }
+        history.count("library.misses", 1);
+        var descriptor = ModuleFinder.of(file).findAll().iterator().next().descriptor();
+        var info = new byte[0];
+        if (!descriptor.isAutomatic()) {
+          try (var jar = new JarFile(file.toFile(), true, ZipFile.OPEN_READ, Runtime.version())) {
+            info = jar.getInputStream(jar.getEntry("module-info.class")).readAllBytes();
+          }
+        }
+        return new Jar(file, size, time, hash, descriptor, info);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Indexing jar file failed: " + file, e);
+      }
+    }
+
+    /** Read cached index entries, an outdated or corrupt cache is ignored. */
+    private Map<Path, Jar> read() {
+      if (Files.notExists(cache)) {
+        return Map.of();
+      }
+      var jars = new HashMap<Path, Jar>();
+      try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+        if (!in.readUTF().equals(VERSION)) {
+          return Map.of();
+        }
+        for (int i = 0, count = in.readInt(); i < count; i++) {
+          var path = Path.of(in.readUTF());
+          var size = in.readLong();
+          var time = in.readLong();
+          var hash = in.readUTF();
+          var packages = new TreeSet<String>();
+          for (int j = 0, n = in.readInt(); j < n; j++) {
+            packages.add(in.readUTF());
+          }
+          var info = in.readNBytes(in.readInt());
+          ModuleDescriptor descriptor;
+          if (info.length > 0) {
+            descriptor = ModuleDescriptor.read(ByteBuffer.wrap(info), () -> packages);
+          } else {
+            var builder = ModuleDescriptor.newAutomaticModule(in.readUTF()).packages(packages);
+            var version = in.readUTF();
+            descriptor = (version.isEmpty() ? builder : builder.version(version)).build();
+          }
+          jars.put(path, new Jar(path, size, time, hash, descriptor, info));
+        }
+      } catch (IOException | RuntimeException e) {
+        log(DEBUG, "Ignoring library index %s: %s", cache, e);
+        return Map.of();
+      }
+      return jars;
+    }
+
+    /** Write all entries to the cache file. */
+    private void write(Collection<Jar> jars) {
+      try {
+        Files.createDirectories(cache.getParent());
+        try (var out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(cache)))) {
+          out.writeUTF(VERSION);
+          out.writeInt(jars.size());
+          for (var jar : jars) {
+            out.writeUTF(jar.path.toString());
+            out.writeLong(jar.size);
+            out.writeLong(jar.time);
+            out.writeUTF(jar.hash);
+            out.writeInt(jar.descriptor.packages().size());
+            for (var name : jar.descriptor.packages()) {
+              out.writeUTF(name);
+            }
+            out.writeInt(jar.moduleInfo.length);
+            out.write(jar.moduleInfo);
+            if (jar.moduleInfo.length == 0) {
+              out.writeUTF(jar.descriptor.name());
+              out.writeUTF(jar.descriptor.rawVersion().orElse(""));
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Writing library index failed: " + cache, e);
+      }
+    }
+
+    /** Find given declared modules and modules of jar files in the given directories. */
+    ModuleFinder finder(List<Path> directories, Collection<ModuleDescriptor> declared) {
+      var references = new TreeMap<String, ModuleReference>();
+      for (var descriptor : declared) {
+        references.putIfAbsent(descriptor.name(), reference(descriptor, null));
+      }
+      for (var directory : directories) {
+        var names = new HashSet<String>();
+        for (var jar : jars.values()) {
+          if (!jar.path.getParent().equals(directory)) {
+            continue;
+          }
+          var name = jar.descriptor.name();
+          if (!names.add(name)) {
+            throw new FindException("Two versions of module " + name + " found in " + directory);
+          }
+          references.putIfAbsent(name, reference(jar.descriptor, jar.path.toUri()));
+        }
+      }
+      return new ModuleFinder() {
+        @Override
+        public Optional<ModuleReference> find(String name) {
+          return Optional.ofNullable(references.get(name));
+        }
+
+        @Override
+        public Set<ModuleReference> findAll() {
+          return Set.copyOf(references.values());
+        }
+      };
+    }
+
+    private ModuleReference reference(ModuleDescriptor descriptor, URI location) {
+      return new ModuleReference(descriptor, location) {
+        @Override
+        public ModuleReader open() {
+          throw new UnsupportedOperationException("Indexed module can't be read: " + location);
+        }
+      };
+    }
+
+    /**
+     * Resolve the declared modules of the given realm against system modules and modules in the
+     * realm's library directories, like the compiler would do.
+     *
+     * @throws FindException if a module is missing
+     * @throws ResolutionException if a module reads a package from more than one module
+     */
+    java.lang.module.Configuration resolve(Project.Realm realm) {
+      var directories = new ArrayList<Path>();
+      var declared = new ArrayList<>(realm.declaredModules.values());
+      if (realm instanceof Project.TestRealm) {
+        var main = ((Project.TestRealm) realm).main;
+        directories.add(root.resolve(main.name));
+        declared.addAll(main.declaredModules.values()); // shadowed by in-module tests
+      }
+      directories.add(root.resolve(realm.name));
+      var after = finder(directories, declared);
+      return java.lang.module.Configuration.empty()
+          .resolve(ModuleFinder.ofSystem(), after, realm.declaredModules.keySet());
+    }
+  }
+
+  /** Resolver downloading missing external modules into the library directory of a realm. */
+  class Resolver {
+
+    /**
+     * Download all missing external modules of the given realm in parallel batches.
+     *
+     * <p>Each round downloads all modules that are required, but neither declared, nor system
+     * modules, nor found in the realm's library directories. Modules required by the downloaded
+     * modules are resolved in the next round, until the module graph is closed.
+     */
+    int resolve(Project.Realm realm) {
+      var directory = configuration.path(Property.PATH_LIBRARY).resolve(realm.name);
+      var uris = uris(realm);
+      var attempted = new TreeSet<String>();
+      var unmapped = new TreeSet<String>();
+      for (int round = 1; ; round++) {
+        var missing = missing(realm, new Library());
+        missing.removeAll(unmapped);
+        var batch = new TreeSet<String>();
+        for (var module : missing) {
+          if (!uris.containsKey(module)) {
+            unmapped.add(module);
+          } else if (attempted.add(module)) {
+            batch.add(module);
+          } else {
+            log(WARNING, "Module %s not found in %s", module, uris.get(module));
+            unmapped.add(module);
+          }
+        }
+        if (batch.isEmpty()) {
+          break;
+        }
+        log(DEBUG, "Resolving %s modules, round %d: %s", realm.name, round, batch);
+        var downloader = new Downloader(directory);
+        var offline = Boolean.getBoolean("bach.offline");
+        var failed = new ConcurrentHashMap<String, String>();
+        Util.execute(
+            () ->
+                batch
+                    .parallelStream()
+                    .forEach(
+                        module -> {
+                          try {
+                            downloader.download(uris.get(module), offline);
+                          } catch (RuntimeException e) {
+                            failed.put(module, e.toString());
+                          }
+                        }));
+        if (!failed.isEmpty()) {
+          failed.forEach((module, e) -> log(ERROR, "Downloading module %s failed: %s", module, e));
+          return 1;
+        }
+      }
+      if (!unmapped.isEmpty()) {
+        log(
+            WARNING,
+            "No URI for %s module(s) of %s realm: %s",
+            unmapped.size(),
+            realm.name,
+            unmapped);
+      }
+      return 0;
+    }
+
+    /** Compute names of modules required, but not found, by the realm and its library modules. */
+    Set<String> missing(Project.Realm realm, Library library) {
+      var directories = new ArrayList<Path>();
+      var present = new TreeSet<>(realm.declaredModules.keySet());
+      if (realm instanceof Project.TestRealm) {
+        var main = ((Project.TestRealm) realm).main;
+        directories.add(library.root.resolve(main.name));
+        present.addAll(main.declaredModules.keySet());
+      }
+      directories.add(library.root.resolve(realm.name));
+      var required = new TreeSet<>(realm.externalModules);
+      for (var jar : library.jars.values()) {
+        if (directories.contains(jar.path.getParent())) {
+          present.add(jar.descriptor.name());
+          for (var requires : jar.descriptor.requires()) {
+            if (!requires.modifiers().contains(Requires.Modifier.STATIC)) {
+              required.add(requires.name());
+            }
+          }
+        }
+      }
+      required.removeAll(present);
+      required.removeAll(Modules.catalog().descriptors.keySet());
+      return required;
+    }
+
+    /**
+     * Map module names to URIs.
+     *
+     * <p>Entries of {@code module-uri.properties} files in the library directories of the realm
+     * take precedence over Maven coordinates of {@code module-maven.properties} files, which take
+     * precedence over well-known coordinates.
+     */
+    Map<String, URI> uris(Project.Realm realm) {
+      var names = new ArrayList<>(List.of(realm.name));
+      if (realm instanceof Project.TestRealm) {
+        names.add(((Project.TestRealm) realm).main.name);
+      }
+      var repository = configuration.get(Property.URI_MAVEN_REPOSITORY);
+      var coordinates = new TreeMap<>(Modules.MAVEN_COORDINATES);
+      var uris = new TreeMap<String, URI>();
+      for (var name : names) {
+        var directory = configuration.path(Property.PATH_LIBRARY).resolve(name);
+        var maven = directory.resolve("module-maven.properties");
+        if (Files.isRegularFile(maven)) {
+          var properties = Util.loadProperties(maven);
+          properties
+              .stringPropertyNames()
+              .forEach(module -> coordinates.putIfAbsent(module, properties.getProperty(module)));
+        }
+        var file = directory.resolve("module-uri.properties");
+        if (Files.isRegularFile(file)) {
+          var properties = Util.loadProperties(file);
+          properties
+              .stringPropertyNames()
+              .forEach(
+                  module -> uris.putIfAbsent(module, URI.create(properties.getProperty(module))));
+        }
+      }
+      coordinates.forEach(
+          (module, gav) -> {
+            var split = gav.split(":");
+            uris.putIfAbsent(module, Modules.maven(repository, split[0], split[1], split[2]));
+          });
+      return uris;
+    }
+  }
+
+  /** Maven 2 repository client resolving transitive dependencies of artifacts via their POMs. */
+  class Maven {
+
+    /** Dependency scopes that are needed at runtime. */
+    final Set<String> scopes = Set.of("compile", "runtime");
+
+    final String repository;
+    final Path store;
+    final Map<String, Model> models = new ConcurrentHashMap<>();
+    private final Map<String, Element> poms = new ConcurrentHashMap<>();
+
+    Maven() {
+      this(
+          configuration.get(Property.URI_MAVEN_REPOSITORY),
+          configuration.path(Property.PATH_CACHE).resolve("maven/models.txt"));
+    }
+
+    Maven(String repository, Path store) {
+      this.repository = repository;
+      this.store = store;
+      load();
+    }
+
+    /**
+     * Declared dependency of a model, {@code
+     * group:artifact:version:scope:type:optional:exclusions:classifier}.
+     */
+    class Dependency {
+      final String group;
+      final String artifact;
+      final String version;
+      final String scope;
+      final String type;
+      final boolean optional;
+      final Set<String> exclusions; // "group:artifact", both may be "*"
+      final String classifier; // empty for the main artifact
+
+      Dependency(
+          String g, String a, String v, String s, String t, boolean o, Set<String> x, String c) {
+        this.group = g;
+        this.artifact = a;
+        this.version = v;
+        this.scope = s;
+        this.type = t;
+        this.optional = o;
+        this.exclusions = x;
+        this.classifier = c;
+      }
+
+      /** Return {@code group:artifact} with {@code :classifier} appended, if there is one. */
+      String key() {
+        return group + ':' + artifact + (classifier.isEmpty() ? "" : ':' + classifier);
+      }
+
+      /** Return {@code group:artifact:version} of the POM describing this dependency. */
+      String project() {
+        return group + ':' + artifact + ':' + version;
+      }
+
+      /** Return {@code group:artifact:version} with {@code :classifier} appended, if any. */
+      String coordinates() {
+        return project() + (classifier.isEmpty() ? "" : ':' + classifier);
+      }
+
+      boolean excludes(Dependency other) {
+        return exclusions.contains(other.key())
+            || exclusions.contains(other.group + ":*")
+            || exclusions.contains("*:" + other.artifact)
+            || exclusions.contains("*:*");
+      }
+
+      @Override
+      public String toString() {
+        var x = exclusions.stream().map(e -> e.replace(':', '/')).collect(Collectors.joining(","));
+        return String.join(":", project(), scope, type, optional ? "1" : "0", x, classifier);
+      }
+    }
+
+    /** Effective model of an artifact: packaging, dependencies and managed dependencies. */
+    class Model {
+      final String coordinates;
+      final String packaging;
+      final List<Dependency> dependencies;
+      final List<Dependency> managed;
+
+      Model(
+          String coordinates,
+          String packaging,
+          List<Dependency> dependencies,
+          List<Dependency> managed) {
+        this.coordinates = coordinates;
+        this.packaging = packaging;
+        this.dependencies = dependencies;
+        this.managed = managed;
+      }
+
+      @Override
+      public String toString() {
+        var line = new StringJoiner(" ");
+        line.add(coordinates).add(packaging);
+        dependencies.forEach(dependency -> line.add(dependency.toString()));
+        line.add("|");
+        managed.forEach(dependency -> line.add(dependency.toString()));
+        return line.toString();
+      }
+    }
+
+    /**
+     * Resolve the given artifacts and their transitive runtime dependencies.
+     *
+     * <p>Models are computed level by level, all models of one level in parallel. The nearest
+     * version of an artifact wins, ties are broken by declaration order. Optional dependencies and
+     * dependencies with other scopes than {@code compile} and {@code runtime} are not followed.
+     * Managed dependencies of the given artifacts override version and scope of their transitive
+     * dependencies, like the dependency management of a project's own POM does.
+     *
+     * @param coordinates artifacts in {@code group:artifact:version[:classifier]} notation
+     * @return coordinates of all jar artifacts in resolution order
+     */
+    List<String> resolve(List<String> coordinates) {
+      var selected = new LinkedHashMap<String, Dependency>();
+      var managed = new HashMap<String, Dependency>();
+      var level = new ArrayList<Dependency>();
+      for (var root : coordinates) {
+        var split = root.split(":");
+        var classifier = classifier(split);
+        level.add(
+            new Dependency(
+                split[0], split[1], split[2], "compile", "jar", false, Set.of(), classifier));
+      }
+      for (var depth = 0; !level.isEmpty(); depth++) {
+        var fresh = new ArrayList<Dependency>();
+        for (var dependency : level) {
+          if (selected.putIfAbsent(dependency.key(), dependency) == null) {
+            fresh.add(dependency);
+          }
+        }
+        var next = new ArrayList<Dependency>();
+        var resolved =
+            fresh.parallelStream().map(d -> model(d.project())).collect(Collectors.toList());
+        if (depth == 0) {
+          resolved.forEach(root -> root.managed.forEach(m -> managed.putIfAbsent(m.key(), m)));
+        }
+        for (int i = 0; i < fresh.size(); i++) {
+          var parent = fresh.get(i);
+          for (var dependency : resolved.get(i).dependencies) {
+            var d = depth == 0 ? dependency : manage(dependency, managed.get(dependency.key()));
+            if (d.optional || !scopes.contains(d.scope)) {
+              continue;
+            }
+            if (parent.excludes(d)) {
+              continue;
+            }
+            var exclusions = new TreeSet<>(parent.exclusions);
+            exclusions.addAll(d.exclusions);
+            next.add(
+                new Dependency(
+                    d.group,
+                    d.artifact,
+                    d.version,
+                    d.scope,
+                    d.type,
+                    false,
+                    exclusions,
+                    d.classifier));
+          }
+        }
+        level = next;
+      }
+      return selected.values().stream()
+          .filter(dependency -> dependency.type.equals("jar"))
+          .map(Dependency::coordinates)
+          .collect(Collectors.toList());
+    }
+
+    /** Apply version and scope of a managed dependency to a transitive one, keep the rest. */
+    private Dependency manage(Dependency d, Dependency managed) {
+      if (managed == null) {
+        return d;
+      }
+      var v = managed.version.isEmpty() ? d.version : managed.version;
+      var s = managed.scope.isEmpty() ? d.scope : managed.scope;
+      var x = new TreeSet<>(d.exclusions);
+      x.addAll(managed.exclusions);
+      return new Dependency(d.group, d.artifact, v, s, d.type, d.optional, x, d.classifier);
+    }
+
+    /** Download jar files of the given artifacts in parallel into the destination directory. */
+    List<Path> download(Path destination, List<String> coordinates) {
+      var downloader = new Downloader(destination);
+      var offline = Boolean.getBoolean("bach.offline");
+      return coordinates
+          .parallelStream()
+          .map(gav -> gav.split(":"))
+          .map(split -> Modules.maven(repository, split[0], split[1], split[2], classifier(split)))
+          .map(uri -> downloader.download(uri, offline))
+          .collect(Collectors.toList());
+    }
+
+    private String classifier(String[] split) {
+      return split.length > 3 ? split[3] : "";
+    }
+
+    /** Return the effective model of the given artifact, from memory, the store or the POM. */
+    Model model(String coordinates) {
+      return model(coordinates, List.of());
+    }
+
+    /**
+     * Return the effective model of an artifact.
+     *
+     * @param coordinates the artifact in {@code group:artifact:version} notation
+     * @param importers artifacts whose models are being computed and import this one as a BOM
+     */
+    private Model model(String coordinates, List<String> importers) {
+      var model = models.get(coordinates);
+      if (model != null) {
+        history.count("maven.hits", 1);
+        return model;
+      }
+      history.count("maven.misses", 1);
+      model = effective(coordinates, importers);
+      if (models.putIfAbsent(coordinates, model) == null && !coordinates.endsWith("-SNAPSHOT")) {
+        save(model);
+      }
+      return models.get(coordinates);
+    }
+
+    /**
+     * Compute the effective model of an artifact.
+     *
+     * <p>Properties, managed dependencies and dependencies of parent POMs are inherited, all values
+     * are interpolated using the merged properties, managed dependencies of imported BOMs are added
+     * and missing versions and scopes are taken from managed dependencies.
+     */
+    private Model effective(String coordinates, List<String> importers) {
+      var chain = new ArrayList<Element>(); // root-most parent first
+      var parents = new LinkedHashSet<String>();
+      for (var gav = coordinates; gav != null; ) {
+        if (!parents.add(gav)) {
+          throw new IllegalStateException("Cycle in parent POMs: " + parents + " -> " + gav);
+        }
+        var pom = pom(gav);
+        chain.add(0, pom);
+        var parent = child(pom, "parent");
+        gav = parent == null ? null : gav(parent);
+      }
+      var properties = new HashMap<String, String>();
+      var declaredManaged = new LinkedHashMap<String, Dependency>();
+      var declaredDependencies = new LinkedHashMap<String, Dependency>();
+      var packaging = "jar";
+      var group = "";
+      var version = "";
+      for (var pom : chain) {
+        var parent = child(pom, "parent");
+        if (parent != null) {
+          properties.put("project.parent.groupId", text(parent, "groupId", group));
+          properties.put("project.parent.version", text(parent, "version", version));
+        }
+        group = text(pom, "groupId", group);
+        version = text(pom, "version", version);
+        packaging = text(pom, "packaging", "jar");
+        properties.put("project.groupId", group);
+        properties.put("project.artifactId", text(pom, "artifactId", ""));
+        properties.put("project.version", version);
+        for (var property : children(child(pom, "properties"), null)) {
+          properties.put(property.getTagName(), property.getTextContent().trim());
+        }
+        var management = child(pom, "dependencyManagement");
+        for (var element : children(child(management, "dependencies"), "dependency")) {
+          var dependency = dependency(element);
+          declaredManaged.put(dependency.key(), dependency);
+        }
+        for (var element : children(child(pom, "dependencies"), "dependency")) {
+          var dependency = dependency(element);
+          declaredDependencies.put(dependency.key(), dependency);
+        }
+      }
+      var managed = new LinkedHashMap<String, Dependency>();
+      var imports = new ArrayList<Dependency>();
+      for (var declared : declaredManaged.values()) {
+        var dependency = interpolate(declared, properties);
+        if (dependency.scope.equals("import")) {
+          imports.add(dependency);
+          continue;
+        }
+        managed.put(dependency.key(), dependency);
+      }
+      var path = new ArrayList<>(importers);
+      path.add(coordinates);
+      for (var bom : imports) {
+        if (path.contains(bom.project())) {
+          throw new IllegalStateException(
+              "Cycle in imported BOMs: " + path + " -> " + bom.project());
+        }
+        for (var dependency : model(bom.project(), path).managed) {
+          managed.putIfAbsent(dependency.key(), dependency);
+        }
+      }
+      var dependencies = new ArrayList<Dependency>();
+      for (var declared : declaredDependencies.values()) {
+        var d = interpolate(declared, properties);
+        var m = managed.get(d.key());
+        var v = d.version.isEmpty() && m != null ? m.version : d.version;
+        var s = d.scope.isEmpty() && m != null ? m.scope : d.scope;
+        var x = d.exclusions.isEmpty() && m != null ? m.exclusions : d.exclusions;
+        if (v.isEmpty()) {
+          throw new IllegalStateException("No version for " + d.key() + " in " + coordinates);
+        }
+        if (v.startsWith("[") || v.startsWith("(")) {
+          v = exact(v, d.key(), coordinates);
+        }
+        s = s.isEmpty() ? "compile" : s;
+        var c = d.classifier;
+        dependencies.add(new Dependency(d.group, d.artifact, v, s, d.type, d.optional, x, c));
+      }
+      return new Model(
+          coordinates, packaging, List.copyOf(dependencies), List.copyOf(managed.values()));
+    }
+
+    /** Return the single version of a hard requirement like {@code [1.2.3]}. */
+    private String exact(String range, String key, String coordinates) {
+      if (range.startsWith("[") && range.endsWith("]") && !range.contains(",")) {
+        return range.substring(1, range.length() - 1);
+      }
+      throw new IllegalStateException(
+          "Version range " + range + " of " + key + " in " + coordinates);
+    }
+
+    private Dependency dependency(Element element) {
+      var exclusions = new TreeSet<String>();
+      for (var exclusion : children(child(element, "exclusions"), "exclusion")) {
+        exclusions.add(text(exclusion, "groupId", "*") + ':' + text(exclusion, "artifactId", "*"));
+      }
+      return new Dependency(
+          text(element, "groupId", ""),
+          text(element, "artifactId", ""),
+          text(element, "version", ""),
+          text(element, "scope", ""),
+          text(element, "type", "jar"),
+          text(element, "optional", "false").equals("true"),
+          exclusions,
+          text(element, "classifier", ""));
+    }
+
+    /** Replace {@code ${name}} placeholders with property values. */
+    private Dependency interpolate(Dependency d, Map<String, String> properties) {
+      return new Dependency(
+          interpolate(d.group, properties),
+          interpolate(d.artifact, properties),
+          interpolate(d.version, properties),
+          interpolate(d.scope, properties),
+          interpolate(d.type, properties),
+          d.optional,
+          d.exclusions,
+          interpolate(d.classifier, properties));
+    }
+
+    private String interpolate(String string, Map<String, String> properties) {
+      for (int i = 0; i < 10 && string.contains("${"); i++) {
+        var matcher = Pattern.compile("\\$\\{([^}]+)}").matcher(string);
+        var buffer = new StringBuilder();
+        while (matcher.find()) {
+          var value = properties.getOrDefault(matcher.group(1), matcher.group());
+          matcher.appendReplacement(buffer, Matcher.quoteReplacement(value));
+        }
+        string = matcher.appendTail(buffer).toString();
+      }
+      return string;
+    }
+
+    /** Fetch and parse the POM of the given artifact. */
+    private Element pom(String coordinates) {
+      var pom = poms.get(coordinates);
+      if (pom != null) {
+        return pom;
+      }
+      var split = coordinates.split(":");
+      var jar = Modules.maven(repository, split[0], split[1], split[2]).toString();
+      var uri = URI.create(jar.substring(0, jar.length() - 3) + "pom");
+      log(DEBUG, "Reading %s", uri);
+      try (var stream = uri.toURL().openStream()) {
+        var factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setExpandEntityReferences(false);
+        pom = factory.newDocumentBuilder().parse(stream).getDocumentElement();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Reading POM failed: " + uri, e);
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Parsing POM failed: " + uri, e);
+      }
+      poms.putIfAbsent(coordinates, pom);
+      return pom;
+    }
+
+    private String gav(Element element) {
+      var group = text(element, "groupId", "");
+      return group + ':' + text(element, "artifactId", "") + ':' + text(element, "version", "");
+    }
+
+    private Element child(Element parent, String name) {
+      var children = children(parent, name);
+      return children.isEmpty() ? null : children.get(0);
+    }
+
+    private List<Element> children(Element parent, String name) {
+      if (parent == null) {
+        return List.of();
+      }
+      var elements = new ArrayList<Element>();
+      for (var node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+        if (node instanceof Element
+            && (name == null || ((Element) node).getTagName().equals(name))) {
+          elements.add((Element) node);
+        }
+      }
+      return elements;
+    }
+
+    private String text(Element parent, String name, String defaultValue) {
+      var child = child(parent, name);
+      return child == null ? defaultValue : child.getTextContent().trim();
+    }
+
+    /** Load all models from the store. */
+    private void load() {
+      if (Files.notExists(store)) {
+        return;
+      }
+      try {
+        for (var line : Files.readAllLines(store)) {
+          var tokens = line.split(" ");
+          var dependencies = new ArrayList<Dependency>();
+          var managed = new ArrayList<Dependency>();
+          var list = dependencies;
+          for (int i = 2; i < tokens.length; i++) {
+            if (tokens[i].equals("|")) {
+              list = managed;
+              continue;
+            }
+            var split = tokens[i].split(":", -1);
+            var exclusions = new TreeSet<String>();
+            for (var exclusion : split[6].split(",")) {
+              if (!exclusion.isEmpty()) {
+                exclusions.add(exclusion.replace('/', ':'));
+              }
+            }
+            var optional = split[5].equals("1");
+            list.add(
+                new Dependency(
+                    split[0],
+                    split[1],
+                    split[2],
+                    split[3],
+                    split[4],
+                    optional,
+                    exclusions,
+                    split[7]));
+          }
+          var model =
+              new Model(tokens[0], tokens[1], List.copyOf(dependencies), List.copyOf(managed));
+          models.put(model.coordinates, model);
+        }
+      } catch (IOException | RuntimeException e) {
+        log(WARNING, "Ignoring corrupt Maven model store %s: %s", store, e);
+        models.clear();
+      }
+    }
+
+    /** Append the model to the store. */
+    private synchronized void save(Model model) {
+      try {
+        Files.createDirectories(store.getParent());
+        var line = model + "\n";
+        Files.writeString(store, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Writing Maven model store failed: " + store, e);
+      }
+    }
+  }
+
+  /** Multi-module compiler and packager. */
+  class Jigsaw {
+
+    final Library library = new Library();
+
+    /** Class files larger than this many bytes are kept in memory-mapped temporary files. */
+    int mapThreshold = 1 << 20;
+
+    /** Pool of file managers used by in-memory compilations. */
+    FileManagers fileManagers = FileManagers.SHARED;
+
+    /** Compile all declared modules of the given realm and package each into a modular jar. */
+    int compile(Project.Realm realm) {
+      if (realm.declaredModules.isEmpty()) {
+        log(DEBUG, "No %s modules declared.", realm.name);
+        return 0;
+      }
+      if (!realm.externalModules.isEmpty()) {
+        try {
+          var resolved = library.resolve(realm).modules();
+          log(DEBUG, "Resolved %d modules required by %s realm", resolved.size(), realm.name);
+        } catch (FindException | ResolutionException e) {
+          log(ERROR, "Resolving %s modules failed: %s", realm.name, e.getMessage());
+          return 1;
+        }
+      }
+      prune(realm);
+      var modules = realm.declaredModules.keySet();
+      log(DEBUG, "Compiling %s modules: %s", realm.name, modules);
+      var javac = new ArrayList<>();
+      javac.add("-d");
+      javac.add(realm.classes());
+      javac.addAll(configuration.lines(Property.OPTIONS_JAVAC));
+      javac.add("--module-source-path");
+      javac.add(realm.moduleSourcePath);
+      var modulePath = realm.modulePath();
+      if (!modulePath.isEmpty()) {
+        javac.add("--module-path");
+        javac.add(
+            modulePath.stream()
+                .map(Path::toString)
+                .collect(Collectors.joining(File.pathSeparator)));
+      }
+      if (realm instanceof Project.TestRealm) {
+        var main = ((Project.TestRealm) realm).main;
+        for (var module : modules) {
+          var sources = main.declaredSources.get(module);
+          if (sources != null) {
+            javac.add("--patch-module");
+            javac.add(module + '=' + sources);
+          }
+        }
+      }
+      javac.add("--module-version");
+      javac.add(project.version);
+      javac.add("--module");
+      javac.add(String.join(",", modules));
+      var packager = new Packager();
+      if (inMemory(packager)) {
+        deleteClassDirectory(realm);
+        var classes = new ConcurrentHashMap<String, Map<String, MemoryClass>>();
+        var code = compile(javac, classes);
+        if (code != 0) {
+          return code;
+        }
+        jar(realm, module -> packager.jar(realm, module, classes.getOrDefault(module, Map.of())));
+        record(realm);
+        return 0;
+      }
+      var code = runner.run("javac", javac.toArray(Object[]::new));
+      if (code != 0) {
+        return code;
+      }
+      jar(realm, module -> packager.jar(realm, module));
+      record(realm);
+      return 0;
+    }
+
+    /**
+     * Package all modules of the realm concurrently, starting with those that took longest in
+     * previous builds, and record how long each one took.
+     */
+    private void jar(Project.Realm realm, Consumer<String> packager) {
+      var prefix = "package." + realm.name + '.';
+      var tasks = new ArrayList<Runnable>();
+      for (var module : history.longestFirst(prefix, realm.declaredModules.keySet())) {
+        tasks.add(
+            () -> {
+              var start = System.nanoTime();
+              packager.accept(module);
+              history.count(prefix + module, (System.nanoTime() - start) / 1_000_000);
+            });
+      }
+      Util.concurrently(tasks);
+    }
+
+    /** Return {@code true} if class files are only needed inside jars and javac is in-process. */
+    boolean inMemory(Packager packager) {
+      return !packager.mode.equals("directory")
+          && !Boolean.parseBoolean(configuration.get(Property.COMPILE_CLASSES))
+          && !configuration.basic.tools().containsKey("javac")
+          && javax.tools.ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * Run the system Java compiler, collecting class files in memory instead of writing them.
+     *
+     * <p>The {@code -d} option is still passed, it determines the module-specific output locations
+     * but no file is written there.
+     *
+     * @param arguments javac arguments
+     * @param classes receives class files by module name and entry name
+     * @return the exit code of javac
+     */
+    int compile(List<?> arguments, Map<String, Map<String, MemoryClass>> classes) {
+      var compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+      var javac =
+          new ToolProvider() {
+            @Override
+            public String name() {
+              return "javac";
+            }
+
+            @Override
+            public int run(PrintWriter out, PrintWriter err, String... args) {
+              try (var lease = fileManagers.lease(compiler, List.of(args))) {
+                history.count("filemanager." + (lease.shared ? "hits" : "misses"), 1);
+                var manager = new MemoryFileManager(lease.manager); // not closed, it's returned
+                var task = compiler.getTask(err, manager, null, lease.options, null, null);
+                var code = task.call() ? 0 : 1;
+                classes.putAll(manager.classes);
+                log(DEBUG, "Compiled %d module(s) into memory", manager.classes.size());
+                return code;
+              }
+            }
+          };
+      return runner.run(javac, arguments.toArray());
+    }
+
+    /**
+     * Delete the class directory of a previous build, javac would prefer its class files.
+     *
+     * <p>The directory is only deleted if the previous build wrote class files into it, as listed
+     * by the output manifest, or if that is unknown.
+     */
+    private void deleteClassDirectory(Project.Realm realm) {
+      var classes = realm.classes();
+      if (Files.notExists(classes)) {
+        return;
+      }
+      var manifest = manifest(realm);
+      if (Files.isRegularFile(manifest)) {
+        try (var lines = Files.lines(manifest)) {
+          if (lines.map(line -> Path.of(line.split("\t", 2)[0])).noneMatch(this::isClassFile)) {
+            return;
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException("Reading output manifest failed: " + manifest, e);
+        }
+      }
+      try {
+        Util.treeDelete(classes);
+        log(DEBUG, "Deleted class directory %s, compiling in memory", classes);
+      } catch (Exception e) {
+        throw new Error("Deleting class directory failed: " + classes, e);
+      }
+    }
+
+    private boolean isClassFile(Path output) {
+      return output.getFileName().toString().endsWith(".class");
+    }
+
+    /** File manager keeping class files of modules in memory, other output goes to disk. */
+    class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+      final Map<String, Map<String, MemoryClass>> classes = new ConcurrentHashMap<>();
+
+      MemoryFileManager(StandardJavaFileManager manager) {
+        super(manager);
+      }
+
+      @Override
+      public JavaFileObject getJavaFileForOutput(
+          JavaFileManager.Location location,
+          String className,
+          JavaFileObject.Kind kind,
+          FileObject sibling)
+          throws IOException {
+        var module = kind == JavaFileObject.Kind.CLASS ? inferModuleName(location) : null;
+        if (module == null) {
+          return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+        var name = className.replace('.', '/') + ".class";
+        var time = sibling != null ? sibling.getLastModified() : 0;
+        var file = new MemoryClass(module, name, time);
+        classes.computeIfAbsent(module, __ -> new ConcurrentHashMap<>()).put(name, file);
+        return file;
+      }
+    }
+
+    /**
+     * Class file kept in memory, or in a memory-mapped temporary file if it is large.
+     *
+     * <p>javac assembles each class file in a buffer before writing it, so the bytes are mapped
+     * only when the stream is closed. The modification time is the one of the source file.
+     */
+    class MemoryClass extends SimpleJavaFileObject {
+
+      final long time;
+      private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+      MemoryClass(String module, String name, long time) {
+        super(URI.create("memory:///" + module + '/' + name), Kind.CLASS);
+        this.time = time;
+      }
+
+      @Override
+      public long getLastModified() {
+        return time;
+      }
+
+      @Override
+      public OutputStream openOutputStream() {
+        return new ByteArrayOutputStream() {
+          @Override
+          public void close() throws IOException {
+            bytes = count > mapThreshold ? map(buf, count) : ByteBuffer.wrap(toByteArray());
+          }
+        };
+      }
+
+      @Override
+      public InputStream openInputStream() {
+        var buffer = bytes.duplicate();
+        return new InputStream() {
+          @Override
+          public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+          }
+
+          @Override
+          public int read(byte[] array, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+              return -1;
+            }
+            var count = Math.min(length, buffer.remaining());
+            buffer.get(array, offset, count);
+            return count;
+          }
+        };
+      }
+
+      /** Return {@code true} if the bytes are mapped from a temporary file. */
+      boolean mapped() {
+        return bytes.isDirect();
+      }
+
+      private ByteBuffer map(byte[] buffer, int count) throws IOException {
+        var file = Files.createTempFile("bach-", ".class");
+        var options =
+            Set.of(
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try (var channel = FileChannel.open(file, options)) {
+          channel.write(ByteBuffer.wrap(buffer, 0, count));
+          return channel.map(FileChannel.MapMode.READ_ONLY, 0, count);
+        }
+      }
+    }
+
+    /** Manifest of the given realm's generated files, each line maps an output to its input. */
+    Path manifest(Project.Realm realm) {
+      return realm.target.resolve("outputs.txt");
+    }
+
+    /**
+     * Delete outputs of the previous build whose inputs vanished.
+     *
+     * <p>Class files of a deleted source file or module are deleted, and so are modular jars that
+     * are not produced by the current project version anymore. All other outputs are kept for
+     * incremental compilation and packaging.
+     */
+    void prune(Project.Realm realm) {
+      var manifest = manifest(realm);
+      if (!Files.isRegularFile(manifest)) {
+        return;
+      }
+      var jars = new HashSet<Path>();
+      realm.declaredModules.keySet().forEach(module -> jars.add(realm.jar(module)));
+      var pruned = 0;
+      try {
+        for (var line : Files.readAllLines(manifest)) {
+          var split = line.split("\t", 2);
+          var output = Path.of(split[0]);
+          var stale = Files.notExists(Path.of(split[1]));
+          if (output.startsWith(realm.modules()) && !jars.contains(output)) {
+            stale = true; // jar of another version
+          }
+          if (stale && Files.deleteIfExists(output)) {
+            pruned++;
+            deleteEmptyParents(output.getParent(), realm.target);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Pruning stale outputs failed: " + manifest, e);
+      }
+      if (pruned > 0) {
+        log(DEBUG, "Pruned %d stale output(s) of %s realm", pruned, realm.name);
+        history.count("outputs.pruned", pruned);
+      }
+    }
+
+    private void deleteEmptyParents(Path directory, Path root) throws IOException {
+      while (directory != null && directory.startsWith(root) && !directory.equals(root)) {
+        try (var entries = Files.newDirectoryStream(directory)) {
+          if (entries.iterator().hasNext()) {
+            return;
+          }
+        }
+        Files.delete(directory);
+        directory = directory.getParent();
+      }
+    }
+
+    /**
+     * Write the manifest of the given realm's outputs.
+     *
+     * <p>A resource is mapped to its source file, a class file to the source file named after its
+     * top-level class. Other classes and the modular jar are mapped to the source directory of
+     * their module. Classes compiled in memory have no output of their own.
+     */
+    void record(Project.Realm realm) {
+      var lines = new ArrayList<String>();
+      for (var module : realm.declaredModules.keySet()) {
+        var sources = realm.declaredSources.get(module);
+        var resources = realm.resources(module);
+        var classes = realm.classes().resolve(module);
+        var files = Files.isDirectory(classes) ? List.of(classes) : List.<Path>of();
+        for (var file : Util.find(files, Files::isRegularFile)) {
+          var relative = classes.relativize(file);
+          var resource = resources.resolve(relative);
+          if (Files.isRegularFile(resource)) {
+            lines.add(file + "\t" + resource);
+            continue;
+          }
+          var name = relative.getFileName().toString();
+          var end = name.indexOf('$');
+          var top = name.substring(0, end < 0 ? name.length() - ".class".length() : end);
+          var source = sources.resolve(relative).resolveSibling(top + ".java");
+          lines.add(file + "\t" + (Files.isRegularFile(source) ? source : sources));
+        }
+        var jar = realm.jar(module);
+        if (Files.isRegularFile(jar)) {
+          lines.add(jar + "\t" + sources);
+        }
+      }
+      var manifest = manifest(realm);
+      try {
+        var temporary = Files.createTempFile(realm.target, "outputs", ".txt");
+        Files.write(temporary, lines);
+        Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Writing output manifest failed: " + manifest, e);
+      }
+    }
+  }
+
+  /**
+   * Standard file managers of in-process compilations, shared by all builds of this JVM.
+   *
+   * <p>A file manager keeps the archives it opened, like modular jars on the module path, and their
+   * indexes. Managers are pooled by module path configuration: all file manager options except the
+   * output directory, which is set anew for each compilation. Module source path and patched
+   * modules are part of the key, a file manager accepts them only once. A pooled manager is dropped
+   * when a jar file in one of its paths or a module of its source path was added or removed, or a
+   * jar file was modified.
+   */
+  static class FileManagers {
+
+    /** Maximum number of idle file managers, the least recently returned one is closed. */
+    static final int CAPACITY = 4;
+
+    /** Pool shared by all in-process compilations of this JVM. */
+    static final FileManagers SHARED = new FileManagers();
+
+    private final Map<List<String>, Map.Entry<String, StandardJavaFileManager>> pool =
+        new LinkedHashMap<>();
+
+    /**
+     * Borrow a file manager configured with the file manager options of the given arguments.
+     *
+     * @param compiler the compiler creating new file managers
+     * @param arguments javac arguments, without operands
+     * @return a lease holding the file manager and the remaining compiler options
+     */
+    Lease lease(JavaCompiler compiler, List<String> arguments) {
+      var key = new ArrayList<String>();
+      var switched = new ArrayList<String>();
+      var options = new ArrayList<String>();
+      for (int i = 0; i < arguments.size(); i++) {
+        var argument = arguments.get(i);
+        var count = compiler.isSupportedOption(argument);
+        if (count >= 0) {
+          options.addAll(arguments.subList(i, i + 1 + count));
+          i += count;
+          continue;
+        }
+        if (argument.equals("-d") && i + 1 < arguments.size()) {
+          switched.addAll(arguments.subList(i, i + 2));
+          i++;
+          continue;
+        }
+        key.add(argument); // file manager option or its value
+      }
+      var state = state(key);
+      Map.Entry<String, StandardJavaFileManager> idle;
+      synchronized (pool) {
+        idle = pool.remove(key);
+      }
+      var manager = idle != null && idle.getKey().equals(state) ? idle.getValue() : null;
+      if (idle != null && manager == null) {
+        close(idle.getValue()); // archives changed
+      }
+      var shared = manager != null;
+      if (!shared) {
+        manager = compiler.getStandardFileManager(null, null, null);
+        handle(manager, key);
+      }
+      handle(manager, switched);
+      return new Lease(key, state, manager, options, shared);
+    }
+
+    private void handle(StandardJavaFileManager manager, List<String> options) {
+      for (var iterator = options.iterator(); iterator.hasNext(); ) {
+        var option = iterator.next();
+        if (!manager.handleOption(option, iterator)) {
+          throw new IllegalArgumentException("Unsupported javac option: " + option);
+        }
+      }
+    }
+
+    /**
+     * Describe the files a file manager configured with the given options reads only once.
+     *
+     * <p>That are sizes and modification times of jar files in the paths and the directories a
+     * module source path pattern expanded to.
+     */
+    private String state(List<String> options) {
+      var state = new StringJoiner("\n");
+      for (var option : options) {
+        for (var element : option.split(File.pathSeparator)) {
+          try {
+            var star = element.indexOf('*');
+            var path = Path.of(star < 0 ? element : element.substring(0, star));
+            if (!Files.isDirectory(path)) {
+              if (element.endsWith(".jar")) {
+                state.add(stamp(path));
+              }
+              continue;
+            }
+            try (var stream = Files.newDirectoryStream(path, star < 0 ? "*.jar" : "*")) {
+              stream.forEach(file -> state.add(star < 0 ? stamp(file) : file.toString()));
+            }
+          } catch (InvalidPathException e) {
+            // not a path, like the value of -encoding
+          } catch (IOException e) {
+            throw new UncheckedIOException("Listing directory failed: " + element, e);
+          }
+        }
+      }
+      return state.toString();
+    }
+
+    private String stamp(Path file) {
+      return file + "@" + file.toFile().lastModified() + ":" + file.toFile().length();
+    }
+
+    /** Close all file managers that are not in use. */
+    void close() {
+      List<StandardJavaFileManager> managers;
+      synchronized (pool) {
+        managers = pool.values().stream().map(Map.Entry::getValue).collect(Collectors.toList());
+        pool.clear();
+      }
+      managers.forEach(this::close);
+    }
+
+    private void close(StandardJavaFileManager manager) {
+      try {
+        manager.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Closing file manager failed", e);
+      }
+    }
+
+    /** Borrowed file manager, closing the lease returns it to the pool. */
+    class Lease implements AutoCloseable {
+
+      final List<String> key;
+      final String state;
+      final StandardJavaFileManager manager;
+      /** Compiler options without file manager options, to be passed to the compilation task. */
+      final List<String> options;
+      /** {@code true} if the manager was used by a previous compilation. */
+      final boolean shared;
+
+      Lease(
+          List<String> key,
+          String state,
+          StandardJavaFileManager manager,
+          List<String> options,
+          boolean shared) {
+        this.key = key;
+        this.state = state;
+        this.manager = manager;
+        this.options = options;
+        this.shared = shared;
+      }
+
+      @Override
+      public void close() {
+        var closed = new ArrayList<StandardJavaFileManager>();
+        synchronized (pool) {
+          var other = pool.remove(key); // another lease of the same configuration returned first
+          if (other != null) {
+            closed.add(other.getValue());
+          }
+          pool.put(key, Map.entry(state, manager));
+          var iterator = pool.values().iterator();
+          while (pool.size() > CAPACITY) {
+            closed.add(iterator.next().getValue());
+            iterator.remove();
+          }
+        }
+        closed.forEach(FileManagers.this::close);
+      }
+    }
+  }
+
+  /** In-process jar file writer compressing entries in parallel. */
+  class Packager {
+
+    /**
+     * Maximum number of bytes of changed entries read and compressed in memory at once.
+     *
+     * <p>Smaller entries are compressed in parallel batches of up to this size, larger ones are
+     * streamed into the jar file.
+     */
+    static final int BATCH = 4 * 1024 * 1024;
+
+    /** Packaging mode, one of {@code deflate}, {@code store} or {@code directory}. */
+    final String mode;
+
+    /** Fixed modification time of all entries, or {@code null} to use times of the files. */
+    final FileTime timestamp;
+
+    Packager() {
+      this(configuration.get(Property.PACKAGE_MODE));
+    }
+
+    Packager(String mode) {
+      this(
+          mode,
+          Optional.of(configuration.get(Property.PACKAGE_TIMESTAMP))
+              .filter(Predicate.not(String::isEmpty))
+              .map(Instant::parse)
+              .map(FileTime::from)
+              .orElse(null));
+    }
+
+    Packager(String mode, FileTime timestamp) {
+      if (!Set.of("deflate", "store", "directory").contains(mode)) {
+        throw new IllegalArgumentException("Unknown packaging mode: " + mode);
+      }
+      this.mode = mode;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * Package compiled classes and resources of a module into its modular jar file.
+     *
+     * <p>Resources are synchronized into the class directory of the module first, stale ones are
+     * pruned by the compiler's output manifest.
+     */
+    void jar(Project.Realm realm, String module) {
+      var jar = realm.jar(module);
+      var classes = realm.classes().resolve(module);
+      var resources = realm.resources(module);
+      if (Files.isDirectory(resources)) {
+        try {
+          var synced = Util.treeSync(resources, classes, __ -> false);
+          if (synced > 0) {
+            log(DEBUG, "Synchronized %d resource(s) of %s", synced, module);
+            history.count("resources.synced", synced);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException("Synchronizing resources failed: " + resources, e);
+        }
+      }
+      if (mode.equals("directory")) {
+        log(DEBUG, "Skip packaging %s, its class directory is used on the module path", module);
+        Util.deleteIfExists(jar); // don't shadow the class directory with a stale jar
+        return;
+      }
+      jar(jar, List.of(classes), null, null);
+    }
+
+    /** Package in-memory class files and the resources of a module into its modular jar file. */
+    void jar(Project.Realm realm, String module, Map<String, ? extends FileObject> classes) {
+      var resources = realm.resources(module);
+      var roots = Files.isDirectory(resources) ? List.of(resources) : List.<Path>of();
+      jar(realm.jar(module), roots, classes, null, null);
+    }
+
+    /** Write a jar file containing all files of the given root directories. */
+    void jar(Path file, List<Path> roots, Version version, String mainClass) {
+      jar(file, roots, Map.of(), version, mainClass);
+    }
+
+    /**
+     * Write a jar file containing all files of the given root directories and in-memory files.
+     *
+     * <p>An existing jar file written by this packager is updated incrementally: only entries with
+     * a different checksum or size are compressed again, the compressed data of all others is
+     * copied from the existing file, and the file isn't touched at all if nothing changed. The
+     * result is byte-identical to packaging from scratch. Generated entries, like the manifest, get
+     * the time of the newest packaged file, so they don't change either.
+     *
+     * <p>Neither the existing jar file nor the content of its entries are held in memory: changed
+     * entries are compressed in batches of up to {@link #BATCH} bytes, larger ones are streamed.
+     *
+     * @param file the jar file to write
+     * @param roots directories to package, later roots must not contain files of earlier ones
+     * @param memory files by entry name, like class files compiled in memory, their directory
+     *     entries are implied; must not contain files of the roots
+     * @param version module version to set in {@code module-info.class}, may be {@code null}
+     * @param mainClass main class to set in the manifest and in {@code module-info.class}, may be
+     *     {@code null}
+     */
+    void jar(
+        Path file,
+        List<Path> roots,
+        Map<String, ? extends FileObject> memory,
+        Version version,
+        String mainClass) {
+      var start = System.nanoTime();
+      var files = new TreeMap<String, Path>();
+      var newest = 0L; // MS-DOS time of 1980-01-01, if there's no file
+      for (var root : roots) {
+        for (var path : Util.find(List.of(root), __ -> true)) {
+          if (path.equals(root)) {
+            continue;
+          }
+          var name = root.relativize(path).toString().replace(File.separatorChar, '/');
+          if (Files.isDirectory(path)) {
+            files.putIfAbsent(name + '/', path);
+            continue;
+          }
+          if (files.putIfAbsent(name, path) != null) {
+            throw new IllegalArgumentException("Duplicate entry " + name + " in " + roots);
+          }
+          newest = Math.max(newest, path.toFile().lastModified());
+        }
+      }
+      var objects = new TreeMap<String, FileObject>();
+      for (var entry : memory.entrySet()) {
+        var name = entry.getKey();
+        if (files.containsKey(name)) {
+          throw new IllegalArgumentException("Duplicate entry " + name + " in " + roots);
+        }
+        for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+          objects.merge(name.substring(0, i + 1), entry.getValue(), this::newer); // directory
+        }
+        objects.put(name, entry.getValue());
+        newest = Math.max(newest, entry.getValue().getLastModified());
+      }
+      var generated = timestamp != null ? timestamp : FileTime.fromMillis(newest);
+      var sorted = new TreeSet<>(files.keySet());
+      sorted.addAll(objects.keySet());
+      var names = new ArrayList<String>();
+      names.add("META-INF/");
+      names.add("META-INF/MANIFEST.MF");
+      sorted.stream().filter(name -> !names.contains(name)).forEach(names::add);
+      var previous = read(file);
+      var manifest = entry(names.get(1), null, null, generated, version, mainClass, previous);
+      if (manifest.changed(previous)) {
+        previous = Map.of(); // written by another tool or version, compressed data may differ
+      }
+      var reusable = previous;
+      var entries =
+          Util.compute(
+              () ->
+                  names
+                      .parallelStream()
+                      .map(
+                          name -> {
+                            var path = files.get(name);
+                            var object = objects.get(name);
+                            return entry(
+                                name, path, object, generated, version, mainClass, reusable);
+                          })
+                      .collect(Collectors.toList()));
+      var changed = entries.stream().filter(entry -> entry.changed(reusable)).count();
+      if (changed > 0 || !layout(previous.values()).equals(layout(entries))) {
+        write(file, entries);
+      }
+      var millis = (System.nanoTime() - start) / 1_000_000;
+      log(
+          DEBUG,
+          "Packaged %s with %d entries (%d changed) in %d ms",
+          file,
+          entries.size(),
+          changed,
+          millis);
+    }
+
+    /**
+     * Describe a single entry, computing its checksum without holding its content in memory.
+     *
+     * <p>An entry with the same method, checksum and size as a previous one reuses its compressed
+     * data as-is, which yields the same bytes as deflating the unchanged content again. Content is
+     * read from the given path, or from the given in-memory file if the path is {@code null}. An
+     * entry without both, like the manifest, is generated and gets the given time.
+     */
+    private Entry entry(
+        String name,
+        Path path,
+        FileObject object,
+        FileTime generated,
+        Version version,
+        String mainClass,
+        Map<String, Entry> previous) {
+      try {
+        var time =
+            timestamp != null
+                ? timestamp
+                : path != null
+                    ? Files.getLastModifiedTime(path)
+                    : object != null ? FileTime.fromMillis(object.getLastModified()) : generated;
+        var dosTime = dosTime(time.toMillis());
+        var method = mode.equals("store") ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        byte[] bytes = null;
+        if (name.endsWith("/")) {
+          method = ZipEntry.STORED;
+          bytes = new byte[0];
+        } else if (path == null && object == null) {
+          bytes = manifest(mainClass);
+        } else if (name.equals("module-info.class") && (version != null || mainClass != null)) {
+          var info = path != null ? Files.readAllBytes(path) : read(object);
+          bytes = Modules.patchModuleInfo(info, version, mainClass);
+        }
+        var checksum = new CRC32();
+        long size;
+        if (bytes != null) {
+          checksum.update(bytes);
+          size = bytes.length;
+        } else {
+          var content = path != null ? Files.newInputStream(path) : object.openInputStream();
+          try (var stream = new CheckedInputStream(content, checksum)) {
+            size = stream.transferTo(OutputStream.nullOutputStream());
+          }
+        }
+        var crc = checksum.getValue();
+        var old = previous.get(name);
+        if (old != null && old.method == method && old.crc == crc && old.size == size) {
+          var local = old.local;
+          var compressed = old.compressed;
+          return new Entry(
+              name, method, dosTime, crc, size, path, object, bytes, local, compressed);
+        }
+        return new Entry(name, method, dosTime, crc, size, path, object, bytes, -1, -1);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Reading entry failed: " + name, e);
+      }
+    }
+
+    /** Return the newer of two in-memory files, it determines the time of their directory. */
+    private FileObject newer(FileObject a, FileObject b) {
+      return a.getLastModified() >= b.getLastModified() ? a : b;
+    }
+
+    /** Read all bytes of an in-memory file. */
+    private byte[] read(FileObject object) throws IOException {
+      try (var stream = object.openInputStream()) {
+        return stream.readAllBytes();
+      }
+    }
+
+    /** Names and times of entries in archive order, the rest is covered by their content. */
+    private List<String> layout(Collection<Entry> entries) {
+      return entries.stream().map(e -> e.path + '@' + e.dosTime).collect(Collectors.toList());
+    }
+
+    /** Create manifest file contents. */
+    private byte[] manifest(String mainClass) {
+      var manifest = new StringBuilder();
+      manifest.append("Manifest-Version: 1.0\r\n");
+      manifest.append("Created-By: Bach.java ").append(VERSION).append("\r\n");
+      if (mainClass != null) {
+        manifest.append("Main-Class: ").append(mainClass).append("\r\n");
+      }
+      manifest.append("\r\n");
+      return manifest.toString().getBytes(UTF_8);
+    }
+
+    /** Compress the given bytes into a raw deflate stream. */
+    private byte[] deflate(byte[] bytes) {
+      var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        deflater.setInput(bytes);
+        deflater.finish();
+        var stream = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+        var buffer = new byte[8192];
+        while (!deflater.finished()) {
+          stream.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return stream.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    /**
+     * Read entries of an existing jar file via its central directory, without reading any data.
+     *
+     * @return entries in archive order, or an empty map if the file is missing or unreadable
+     */
+    Map<String, Entry> read(Path file) {
+      if (Files.notExists(file)) {
+        return Map.of();
+      }
+      try (var channel = FileChannel.open(file)) {
+        var tail = ByteBuffer.allocate((int) Math.min(channel.size(), 22 + 0xFFFF));
+        read(channel, tail.order(ByteOrder.LITTLE_ENDIAN), channel.size() - tail.capacity());
+        var end = tail.capacity() - 22;
+        while (tail.getInt(end) != 0x06054b50) {
+          end--; // skip archive comment
+        }
+        var directory = ByteBuffer.allocate(tail.getInt(end + 12));
+        var position = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        read(channel, directory.order(ByteOrder.LITTLE_ENDIAN), position);
+        var entries = new LinkedHashMap<String, Entry>();
+        var offset = 0;
+        for (int i = 0, count = tail.getShort(end + 10) & 0xFFFF; i < count; i++) {
+          if (directory.getInt(offset) != 0x02014b50) {
+            var header = position + offset;
+            throw new IllegalStateException("Expected central directory header at " + header);
+          }
+          var nameLength = directory.getShort(offset + 28) & 0xFFFF;
+          var extraLength = directory.getShort(offset + 30) & 0xFFFF;
+          var commentLength = directory.getShort(offset + 32) & 0xFFFF;
+          var name = new String(directory.array(), offset + 46, nameLength, UTF_8);
+          var entry =
+              new Entry(
+                  name,
+                  directory.getShort(offset + 10) & 0xFFFF,
+                  directory.getInt(offset + 12) & 0xFFFFFFFFL,
+                  directory.getInt(offset + 16) & 0xFFFFFFFFL,
+                  directory.getInt(offset + 24) & 0xFFFFFFFFL,
+                  null,
+                  null,
+                  null,
+                  directory.getInt(offset + 42) & 0xFFFFFFFFL,
+                  directory.getInt(offset + 20) & 0xFFFFFFFFL);
+          entries.put(name, entry);
+          offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+      } catch (IOException | RuntimeException e) {
+        log(DEBUG, "Reading previous jar %s failed, packaging all entries: %s", file, e);
+        return Map.of();
+      }
+    }
+
+    /** Fill the given buffer with bytes of the channel, starting at the given position. */
+    private void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          var at = position + buffer.position();
+          throw new EOFException("Unexpected end of file at " + at);
+        }
+      }
+    }
+
+    /**
+     * Write all entries into a temporary file and move it over the given jar file.
+     *
+     * <p>Compressed data of reused entries is copied from the existing jar file, changed entries
+     * are compressed in parallel batches, and large ones are streamed.
+     */
+    private void write(Path file, List<Entry> entries) {
+      if (entries.size() > 0xFFFF) {
+        throw new IllegalArgumentException("Too many entries for a non-ZIP64 archive: " + file);
+      }
+      var reused = entries.stream().anyMatch(entry -> entry.local >= 0);
+      var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+      try {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        var offsets = new long[entries.size()];
+        var sizes = new long[entries.size()];
+        var options =
+            new OpenOption[] {
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE
+            };
+        try (var out = FileChannel.open(temporary, options);
+            var previous = reused ? FileChannel.open(file) : null) {
+          for (int i = 0; i < entries.size(); ) {
+            if (entries.get(i).local < 0 && entries.get(i).size > BATCH) {
+              offsets[i] = out.position();
+              sizes[i] = stream(entries.get(i++), out);
+              continue;
+            }
+            var from = i;
+            var budget = 0L;
+            for (; i < entries.size(); i++) {
+              var entry = entries.get(i);
+              if (entry.local < 0) {
+                if (entry.size > BATCH || budget + entry.size > BATCH) {
+                  break;
+                }
+                budget += entry.size;
+              }
+            }
+            var batch = entries.subList(from, i);
+            var compressed =
+                Util.compute(
+                    () ->
+                        batch
+                            .parallelStream()
+                            .map(entry -> entry.local < 0 ? compress(entry) : null)
+                            .collect(Collectors.toList()));
+            for (int j = 0; j < batch.size(); j++) {
+              var entry = batch.get(j);
+              offsets[from + j] = out.position();
+              if (entry.local >= 0) {
+                sizes[from + j] = copy(entry, previous, out);
+                continue;
+              }
+              var data = compressed.get(j);
+              write(out, entry.header(0x04034b50, 30, data.length, 0));
+              write(out, data);
+              sizes[from + j] = data.length;
+            }
+          }
+          var directory = out.position();
+          var headers = new ByteArrayOutputStream();
+          for (int i = 0; i < entries.size(); i++) {
+            headers.write(entries.get(i).header(0x02014b50, 46, sizes[i], offsets[i]));
+          }
+          write(out, headers.toByteArray());
+          if (out.position() > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Archive too large for non-ZIP64 format: " + file);
+          }
+          var end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+          end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+          end.putShort((short) entries.size()).putShort((short) entries.size());
+          end.putInt(headers.size()).putInt((int) directory).putShort((short) 0);
+          write(out, end.array());
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE); // never leave a partial jar
+      } catch (IOException e) {
+        throw new UncheckedIOException("Writing jar file failed: " + file, e);
+      } finally {
+        Util.deleteIfExists(temporary);
+      }
+    }
+
+    /** Read and compress the content of a changed entry into memory. */
+    private byte[] compress(Entry entry) {
+      try (var stream = entry.open()) {
+        var bytes = stream.readAllBytes();
+        var checksum = new CRC32();
+        checksum.update(bytes);
+        entry.verify(checksum.getValue(), bytes.length);
+        return entry.method == ZipEntry.STORED ? bytes : deflate(bytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Reading entry failed: " + entry.path, e);
+      }
+    }
+
+    /** Compress the content of a changed entry into the channel and return its length. */
+    private long stream(Entry entry, FileChannel out) throws IOException {
+      var start = out.position();
+      var header = entry.header(0x04034b50, 30, 0, 0); // placeholder, sizes are set below
+      out.position(start + header.length);
+      var checksum = new CRC32();
+      var target = Channels.newOutputStream(out); // not closed, it would close the channel
+      try (var stream = new CheckedInputStream(entry.open(), checksum)) {
+        if (entry.method == ZipEntry.STORED) {
+          stream.transferTo(target);
+        } else {
+          var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+          try {
+            var deflating = new DeflaterOutputStream(target, deflater, 8192);
+            stream.transferTo(deflating);
+            deflating.finish();
+          } finally {
+            deflater.end();
+          }
+        }
+      }
+      var length = out.position() - start - header.length;
+      entry.verify(checksum.getValue(), entry.size);
+      out.write(ByteBuffer.wrap(entry.header(0x04034b50, 30, length, 0)), start);
+      return length;
+    }
+
+    /** Copy the compressed data of a reused entry from the previous jar and return its length. */
+    private long copy(Entry entry, FileChannel previous, FileChannel out) throws IOException {
+      var local = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+      read(previous, local, entry.local);
+      if (local.getInt(0) != 0x04034b50) {
+        throw new IOException("Expected local file header at " + entry.local);
+      }
+      var position = entry.local + 30 + (local.getShort(26) & 0xFFFF);
+      position += local.getShort(28) & 0xFFFF;
+      write(out, entry.header(0x04034b50, 30, entry.compressed, 0));
+      for (var end = position + entry.compressed; position < end; ) {
+        position += previous.transferTo(position, end - position, out);
+      }
+      return entry.compressed;
+    }
+
+    /** Write all given bytes at the current position of the channel. */
+    private void write(FileChannel channel, byte[] bytes) throws IOException {
+      var buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    /** Entry with precomputed checksum, its data is read, compressed or copied when written. */
+    class Entry {
+      final String path;
+      final byte[] name;
+      final int method;
+      final long dosTime;
+      final long crc;
+      final long size;
+      // content is read from a file, an in-memory file or generated bytes, none of them if reused
+      final Path file;
+      final FileObject object;
+      final byte[] bytes;
+      /** Offset of the local header in the previous jar file, or -1 if the entry changed. */
+      final long local;
+      /** Length of the compressed data in the previous jar file, or -1 if the entry changed. */
+      final long compressed;
+
+      Entry(
+          String path,
+          int method,
+          long dosTime,
+          long crc,
+          long size,
+          Path file,
+          FileObject object,
+          byte[] bytes,
+          long local,
+          long compressed) {
+        this.path = path;
+        this.name = path.getBytes(UTF_8);
+        this.method = method;
+        this.dosTime = dosTime;
+        this.crc = crc;
+        this.size = size;
+        this.file = file;
+        this.object = object;
+        this.bytes = bytes;
+        this.local = local;
+        this.compressed = compressed;
+      }
+
+      /** Return {@code true} if no previous entry with the same name and content exists. */
+      boolean changed(Map<String, Entry> previous) {
+        var old = previous.get(path);
+        return old == null || old.method != method || old.crc != crc || old.size != size;
+      }
+
+      /** Open the content of this entry. */
+      InputStream open() throws IOException {
+        if (bytes != null) {
+          return new ByteArrayInputStream(bytes);
+        }
+        return file != null ? Files.newInputStream(file) : object.openInputStream();
+      }
+
+      /** Fail if the content read for writing differs from the one described. */
+      void verify(long crc, long size) throws IOException {
+        if (crc != this.crc || size != this.size) {
+          throw new IOException("Content changed while packaging: " + path);
+        }
+      }
+
+      /** Create local file header or central directory header of this entry. */
+      byte[] header(int signature, int length, long compressed, long offset) {
+        var central = signature == 0x02014b50;
+        var header = ByteBuffer.allocate(length + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(signature);
+        if (central) {
+          header.putShort((short) 20); // version made by
+        }
+        header.putShort((short) (method == ZipEntry.STORED ? 10 : 20)); // version needed
+        header.putShort((short) 0x0800); // general purpose flags: UTF-8 names
+        header.putShort((short) method);
+        header.putInt((int) dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) compressed);
+        header.putInt((int) size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0); // extra field length
+        if (central) {
+          header.putShort((short) 0); // comment length
+          header.putShort((short) 0); // disk number start
+          header.putShort((short) 0); // internal attributes
+          header.putInt(name[name.length - 1] == '/' ? 0x10 : 0); // external attributes
+          header.putInt((int) offset);
+        }
+        header.put(name);
+        return header.array();
+      }
+    }
+
+    /** Convert epoch milliseconds to MS-DOS date and time in UTC, like {@code jar --date}. */
+    private long dosTime(long millis) {
+      var time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+      if (time.getYear() < 1980) {
+        return (1 << 21) | (1 << 16);
+      }
+      return (time.getYear() - 1980) << 25
+          | time.getMonthValue() << 21
+          | time.getDayOfMonth() << 16
+          | time.getHour() << 11
+          | time.getMinute() << 5
+          | time.getSecond() >> 1;
+    }
+  }
+
+  /** Runtime image linker caching images in directories named by a hash of their inputs. */
+  class Linker {
+
+    final Path cache;
+
+    Linker() {
+      this(configuration.path(Property.PATH_CACHE).resolve("image"));
+    }
+
+    Linker(Path cache) {
+      this.cache = cache;
+    }
+
+    /**
+     * Link all declared modules of the given realm into a runtime image.
+     *
+     * <p>An image is only linked if no image with the same modules, module contents, options and
+     * Java runtime exists in the cache. The {@code image} entry of the realm's target directory
+     * points to the current image.
+     */
+    int link(Project.Realm realm) {
+      if (realm.declaredModules.isEmpty()) {
+        log(DEBUG, "No %s modules declared, no image to link.", realm.name);
+        return 0;
+      }
+      var modulePath = modulePath(realm);
+      var options = configuration.lines(Property.OPTIONS_JLINK);
+      var cds = Boolean.parseBoolean(configuration.get(Property.LINK_CDS));
+      var image = cache.resolve(hash(realm, modulePath, options, cds));
+      var temporary = cache.resolve(image.getFileName() + ".part");
+      try {
+        Files.createDirectories(cache);
+        // single-flight: concurrent builds wait for the image and the cache doesn't evict it
+        try (var lock = Util.lock(cache.resolve(image.getFileName() + ".lock"))) {
+          if (lock.contended) {
+            log(DEBUG, "Waited for concurrent linking of %s", image);
+          }
+          if (Files.isDirectory(image)) {
+            log(DEBUG, "Reusing cached image %s", image);
+            history.count("link.hits", 1);
+            new Cache().touch(image);
+            return point(realm, image);
+          }
+          history.count("link.misses", 1);
+          Util.treeDelete(temporary); // jlink insists on creating the output directory
+          var code = jlink(realm, modulePath, options, cds, temporary);
+          if (code != 0) {
+            return code;
+          }
+          Files.move(temporary, image, StandardCopyOption.ATOMIC_MOVE);
+        }
+        log(DEBUG, "Linked image %s", image);
+        new Cache().touch(image);
+        return point(realm, image);
+      } catch (Exception e) {
+        throw new Error("Linking image failed: " + image, e);
+      } finally {
+        try {
+          Util.treeDelete(temporary);
+        } catch (Exception e) {
+          log(WARNING, "Deleting temporary image failed: %s", e);
+        }
+      }
+    }
+
+    /** Run jlink and, if requested, dump a default class data sharing archive. */
+    private int jlink(
+        Project.Realm realm,
+        List<Path> modulePath,
+        List<String> options,
+        boolean cds,
+        Path output) {
+      var arguments = new ArrayList<Object>();
+      var jmods = Path.of(System.getProperty("java.home"), "jmods");
+      var paths = new ArrayList<>(modulePath);
+      if (Files.isDirectory(jmods)) {
+        paths.add(jmods); // not needed by runtimes linking from their own image
+      }
+      arguments.add("--module-path");
+      arguments.add(
+          paths.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)));
+      arguments.add("--add-modules");
+      arguments.add(String.join(",", realm.declaredModules.keySet()));
+      arguments.addAll(options);
+      arguments.add("--output");
+      arguments.add(output);
+      var code = runner.run("jlink", arguments.toArray(Object[]::new));
+      return code == 0 && cds ? dump(output) : code;
+    }
+
+    /** Modular jars, class directories in directory mode and external modules of the realm. */
+    List<Path> modulePath(Project.Realm realm) {
+      var paths = new ArrayList<Path>();
+      paths.add(realm.modules());
+      if ("directory".equals(configuration.get(Property.PACKAGE_MODE))) {
+        paths.add(realm.classes());
+      }
+      realm.library(realm.name).ifPresent(paths::add);
+      return paths;
+    }
+
+    /**
+     * Compute the hash of all inputs that influence the contents of an image.
+     *
+     * <p>System modules are covered by the version and location of the current Java runtime,
+     * application modules by the contents of all files on the given module path. Jar files are
+     * covered by the names and checksums of their entries: times of entries don't end up in an
+     * image, so a rebuilt jar with the same contents hits the cache.
+     */
+    String hash(Project.Realm realm, List<Path> modulePath, List<String> options, boolean cds) {
+      try {
+        var digest = MessageDigest.getInstance("SHA-256");
+        var lines = new ArrayList<String>();
+        lines.add("java=" + Runtime.version() + " " + System.getProperty("java.home"));
+        lines.add("modules=" + realm.declaredModules.keySet());
+        lines.add("options=" + options);
+        lines.add("cds=" + cds);
+        for (int i = 0; i < modulePath.size(); i++) {
+          var root = modulePath.get(i);
+          for (var path : new TreeSet<>(Util.find(List.of(root), Files::isRegularFile))) {
+            var name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (!name.endsWith(".jar")) {
+              lines.add(i + "/" + name + "=" + Util.sha256(path));
+              continue;
+            }
+            try (var jar = new JarFile(path.toFile())) {
+              for (var entry : Collections.list(jar.entries())) {
+                var crc = String.format("%08x", entry.getCrc());
+                lines.add(
+                    i + "/" + name + "!/" + entry.getName() + "=" + crc + ":" + entry.getSize());
+              }
+            }
+          }
+        }
+        var all = digest.digest(String.join("\n", lines).getBytes(UTF_8));
+        return String.format("%064x", new BigInteger(1, all));
+      } catch (Exception e) {
+        throw new Error("Hashing image inputs failed: " + e, e);
+      }
+    }
+
+    /** Create the default class data sharing archive of the given image. */
+    int dump(Path image) {
+      var java = Util.findExecutable(List.of(image.resolve("bin")), "java").orElseThrow();
+      var builder = new ProcessBuilder(java.toString(), "-Xshare:dump");
+      log(DEBUG, "Dumping default CDS archive: %s", builder.command());
+      return runner.run(configuration.basic.redirectIO().apply(builder));
+    }
+
+    /** Let the {@code image} entry of the realm's target directory point to the given image. */
+    private int point(Project.Realm realm, Path image) {
+      var link = realm.target.resolve("image");
+      try {
+        Files.createDirectories(realm.target);
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, image.toAbsolutePath());
+      } catch (IOException | UnsupportedOperationException e) {
+        log(DEBUG, "Creating symbolic link %s failed: %s", link, e);
+      }
+      log(INFO, "Image of %s realm: %s", realm.name, image);
+      return 0;
+    }
+  }
+
+  /**
+   * Size- and age-bounded store of tools, images and other artifacts shared by all builds.
+   *
+   * <p>Artifacts are regular files and linked image directories. Bach records each access to an
+   * artifact in an append-only log; artifacts are evicted by their last access time when they
+   * expired or the cache exceeds its byte budget. An artifact locked by a running build, via a
+   * {@code .lock} file next to it, is never evicted.
+   */
+  class Cache {
+
+    /** Minimum number of milliseconds between two background evictions. */
+    static final long INTERVAL = 24 * 60 * 60 * 1000;
+
+    final Path root;
+    final Path log;
+
+    Cache() {
+      this(configuration.path(Property.PATH_CACHE));
+    }
+
+    Cache(Path root) {
+      this.root = root.toAbsolutePath().normalize();
+      this.log = this.root.resolve("access.log");
+    }
+
+    /** Record an access to the given artifact, if it is located in this cache. */
+    void touch(Path artifact) {
+      var path = artifact.toAbsolutePath().normalize();
+      if (!path.startsWith(root) || path.equals(root)) {
+        return;
+      }
+      var line = System.currentTimeMillis() + " " + root.relativize(path) + "\n";
+      try {
+        // a single short append is atomic, concurrent builds don't need to lock the log
+        Files.writeString(log, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        log(WARNING, "Recording cache access failed: %s", e);
+      }
+    }
+
+    /**
+     * Acquire a shared lock on the given artifact, to be held while it is in use.
+     *
+     * <p>Eviction skips locked artifacts, and a download replacing the artifact waits for all of
+     * its users.
+     */
+    Util.Lock use(Path artifact) throws IOException {
+      return Util.lockShared(artifact.resolveSibling(artifact.getFileName() + ".lock"));
+    }
+
+    /** Last recorded access times keyed by the paths of the artifacts. */
+    Map<Path, Long> accesses() throws IOException {
+      var accesses = new HashMap<Path, Long>();
+      if (Files.isRegularFile(log)) {
+        for (var line : Files.readAllLines(log)) {
+          var split = line.split(" ", 2);
+          if (split.length == 2) {
+            accesses.merge(root.resolve(split[1]), Long.parseLong(split[0]), Math::max);
+          }
+        }
+      }
+      return accesses;
+    }
+
+    /** All artifacts of this cache sorted by their last access, least recently used first. */
+    List<Artifact> artifacts() throws IOException {
+      var sizes = new TreeMap<Path, Long>();
+      if (Files.isDirectory(root)) {
+        var images = root.resolve("image");
+        try (var stream = Files.walk(root)) {
+          for (var file : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+            var name = file.getFileName().toString();
+            if (name.endsWith(".lock") || file.getParent().equals(root)) {
+              continue; // lock files and bookkeeping files of this cache
+            }
+            var artifact = file;
+            if (file.startsWith(images) && file.getNameCount() > images.getNameCount() + 1) {
+              artifact = images.resolve(images.relativize(file).getName(0));
+            }
+            sizes.merge(artifact, Files.size(file), Long::sum);
+          }
+        }
+      }
+      var accesses = accesses();
+      var now = System.currentTimeMillis();
+      var artifacts = new ArrayList<Artifact>();
+      for (var entry : sizes.entrySet()) {
+        var path = entry.getKey();
+        // unrecorded artifacts are "accessed now", those left by an interrupted eviction never
+        var access = path.toString().endsWith(".evicted") ? 0 : accesses.getOrDefault(path, now);
+        artifacts.add(new Artifact(path, entry.getValue(), access));
+      }
+      artifacts.sort(Comparator.comparingLong(artifact -> artifact.access));
+      return artifacts;
+    }
+
+    /** Evict artifacts in a daemon thread, unless the last eviction happened recently. */
+    void evictInBackground() {
+      var stamp = root.resolve("cache.evicted");
+      try {
+        if (!Files.isDirectory(root)) {
+          return;
+        }
+        if (Files.exists(stamp)) {
+          var millis = Files.getLastModifiedTime(stamp).toMillis();
+          if (System.currentTimeMillis() - millis < INTERVAL) {
+            return;
+          }
+        }
+      } catch (IOException e) {
+        log(WARNING, "Reading cache stamp failed: %s", e);
+        return;
+      }
+      var thread = new Thread(this::evictQuietly, "bach-cache-eviction");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void evictQuietly() {
+      try {
+        evict(budget(), ttl());
+      } catch (Exception e) {
+        log(WARNING, "Evicting cached artifacts failed: %s", e);
+      }
+    }
+
+    /**
+     * Evict expired and least recently used artifacts until the cache fits into the budget.
+     *
+     * @param budget maximum number of bytes of all artifacts
+     * @param ttl maximum number of milliseconds since the last access of an artifact
+     * @return evicted artifacts
+     */
+    List<Artifact> evict(long budget, long ttl) throws IOException {
+      var evicted = new ArrayList<Artifact>();
+      if (!Files.isDirectory(root)) {
+        return evicted;
+      }
+      try (var lock = Util.lock(root.resolve("cache.lock"))) {
+        if (lock.contended) {
+          log(DEBUG, "Waited for concurrent eviction of %s", root);
+        }
+        var artifacts = artifacts();
+        var total = artifacts.stream().mapToLong(artifact -> artifact.size).sum();
+        var now = System.currentTimeMillis();
+        for (var artifact : artifacts) {
+          if (now - artifact.access <= ttl && total <= budget) {
+            break; // all remaining artifacts were accessed more recently
+          }
+          try (var guard = Util.tryLock(artifact.lock())) {
+            if (guard == null) {
+              log(DEBUG, "Skip evicting locked artifact %s", artifact.path);
+              continue;
+            }
+            artifact.delete();
+          }
+          log(DEBUG, "Evicted %s [%d bytes]", artifact.path, artifact.size);
+          total -= artifact.size;
+          evicted.add(artifact);
+        }
+        deleteStaleLocks();
+        // compact the log, keeping one line per remaining artifact
+        var lines = new ArrayList<String>();
+        for (var artifact : artifacts) {
+          if (!evicted.contains(artifact)) {
+            lines.add(artifact.access + " " + root.relativize(artifact.path));
+          }
+        }
+        var temporary = Files.createTempFile(root, "access", ".log");
+        Files.write(temporary, lines);
+        Files.move(temporary, log, StandardCopyOption.REPLACE_EXISTING);
+        Files.writeString(root.resolve("cache.evicted"), Instant.now() + "\n");
+      }
+      return evicted;
+    }
+
+    /** Delete lock files of artifacts that don't exist anymore, unless they are held. */
+    private void deleteStaleLocks() throws IOException {
+      List<Path> locks;
+      try (var stream = Files.walk(root)) {
+        locks =
+            stream
+                .filter(path -> path.getFileName().toString().endsWith(".lock"))
+                .filter(path -> !path.getParent().equals(root))
+                .collect(Collectors.toList());
+      }
+      for (var lock : locks) {
+        var name = lock.getFileName().toString();
+        var artifact = lock.resolveSibling(name.substring(0, name.length() - ".lock".length()));
+        if (Files.exists(artifact) || Files.exists(Path.of(artifact + ".part"))) {
+          continue;
+        }
+        try (var guard = Util.tryLock(lock)) {
+          if (guard != null) {
+            Files.deleteIfExists(lock); // a waiting locker notices and locks a new file
+            log(DEBUG, "Deleted stale lock %s", lock);
+          }
+        } catch (IOException e) {
+          log(DEBUG, "Deleting stale lock %s failed: %s", lock, e);
+        }
+      }
+    }
+
+    /** Print the usage of this cache per directory and evict artifacts exceeding its bounds. */
+    int prune() {
+      try {
+        var budget = budget();
+        var usage = new TreeMap<String, long[]>();
+        for (var artifact : artifacts()) {
+          var directory = root.relativize(artifact.path.getParent()).toString();
+          var counts = usage.computeIfAbsent(directory, __ -> new long[2]);
+          counts[0]++;
+          counts[1] += artifact.size;
+        }
+        var total = usage.values().stream().mapToLong(counts -> counts[1]).sum();
+        out.printf("Cache %s uses %,d of %,d bytes%n", root, total, budget);
+        usage.forEach(
+            (directory, counts) ->
+                out.printf(
+                    "  %-30s %,6d artifact(s) %,15d bytes%n", directory, counts[0], counts[1]));
+        var evicted = evict(budget, ttl());
+        var freed = evicted.stream().mapToLong(artifact -> artifact.size).sum();
+        out.printf("Evicted %d artifact(s) freeing %,d bytes%n", evicted.size(), freed);
+        return 0;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Pruning cache failed: " + root, e);
+      }
+    }
+
+    /** Configured byte budget, parsed from a number with an optional k, m or g suffix. */
+    long budget() {
+      var value = configuration.get(Property.CACHE_BUDGET).trim().toLowerCase();
+      var unit = value.isEmpty() ? -1 : "kmg".indexOf(value.charAt(value.length() - 1));
+      var number = unit < 0 ? value : value.substring(0, value.length() - 1);
+      return Long.parseLong(number) << (10 * (unit + 1));
+    }
+
+    /** Configured time-to-live in milliseconds, parsed from an ISO-8601 duration. */
+    long ttl() {
+      return Duration.parse(configuration.get(Property.CACHE_TTL)).toMillis();
+    }
+
+    /** Cached file or image directory. */
+    class Artifact {
+
+      final Path path;
+      final long size;
+      final long access;
+
+      Artifact(Path path, long size, long access) {
+        this.path = path;
+        this.size = size;
+        this.access = access;
+      }
+
+      /** Lock file held by builds writing or reading this artifact. */
+      Path lock() {
+        var name = path.getFileName().toString();
+        var base = name.endsWith(".part") ? name.substring(0, name.length() - 5) : name;
+        return path.resolveSibling(base + ".lock");
+      }
+
+      /** Delete this artifact, moving directories aside first to never leave partial images. */
+      void delete() throws IOException {
+        if (!Files.isDirectory(path)) {
+          Files.deleteIfExists(path);
+          return;
+        }
+        var aside = path;
+        if (!path.toString().endsWith(".evicted")) {
+          aside = path.resolveSibling(path.getFileName() + ".evicted");
+          Files.move(path, aside, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+          Util.treeDelete(aside);
+        } catch (Exception e) {
+          throw new IOException("Deleting " + aside + " failed", e);
+        }
+      }
+    }
+  }
+
+  /** Build history recorder and line-based store. */
+  class History {
+
+    /** Number of previous builds taken into account when computing rolling medians. */
+    static final int WINDOW = 10;
+
+    /** Durations below this amount of milliseconds are too noisy to be flagged. */
+    static final long NOISE = 100;
+
+    final Path file;
+    final Map<String, Long> counters = new ConcurrentHashMap<>();
+
+    /** Tools reporting on recorded builds, the cache or Bach itself: running them is no build. */
+    final Set<String> reports = Set.of("cache", "help", "stats", "version");
+
+    History(Path file) {
+      this.file = file;
+    }
+
+    /** Add the given amount to the named counter of the current build. */
+    void count(String key, long amount) {
+      counters.merge(key, amount, Long::sum);
+    }
+
+    /**
+     * Capture project and JVM statistics, append a record and warn about regressions.
+     *
+     * <p>Durations of reporting tools are dropped, and nothing is appended if no other tool ran.
+     */
+    void append() {
+      var record = new TreeMap<>(counters);
+      reports.forEach(report -> record.remove("tool." + report));
+      if (!isBuild(record)) {
+        return;
+      }
+      record.put("time", System.currentTimeMillis());
+      record.put("java", (long) Runtime.version().feature());
+      record.put("modules.main", (long) project.main.declaredModules.size());
+      record.put("modules.test", (long) project.test.declaredModules.size());
+      record.put("modules.external", (long) project.main.externalModules.size());
+      for (var collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        record.merge("gc.count", Math.max(0, collector.getCollectionCount()), Long::sum);
+        record.merge("gc.time", Math.max(0, collector.getCollectionTime()), Long::sum);
+      }
+      var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+      record.put("jvm.heap.used", heap.getUsed());
+      record.put("jvm.heap.committed", heap.getCommitted());
+      record.put("jvm.uptime", ManagementFactory.getRuntimeMXBean().getUptime());
+      var line = new StringJoiner(" ");
+      record.forEach((key, value) -> line.add(key + '=' + value));
+      try {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, line + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Appending build record failed: " + file, e);
+      }
+      regressions(builds()).forEach(message -> log(WARNING, "%s", message));
+    }
+
+    /** Read all records from the store, oldest first. */
+    List<Map<String, Long>> records() {
+      if (Files.notExists(file)) {
+        return List.of();
+      }
+      var records = new ArrayList<Map<String, Long>>();
+      try {
+        for (var line : Files.readAllLines(file)) {
+          var record = new TreeMap<String, Long>();
+          for (var pair : line.split(" ")) {
+            var index = pair.indexOf('=');
+            if (index > 0) {
+              record.put(pair.substring(0, index), Long.parseLong(pair.substring(index + 1)));
+            }
+          }
+          if (!record.isEmpty()) {
+            records.add(record);
+          }
+        }
+      } catch (IOException | NumberFormatException e) {
+        log(WARNING, "Reading build history failed: %s", e);
+        return List.of();
+      }
+      return records;
+    }
+
+    /** Read records of builds, skipping those of reporting runs appended by older versions. */
+    List<Map<String, Long>> builds() {
+      return records().stream().filter(this::isBuild).collect(Collectors.toList());
+    }
+
+    /** Return {@code true} if the given record contains the duration of a non-reporting tool. */
+    boolean isBuild(Map<String, Long> record) {
+      return record.keySet().stream()
+          .anyMatch(key -> key.startsWith("tool.") && !reports.contains(key.substring(5)));
+    }
+
+    /** Compute the median of the named value over the last {@link #WINDOW} records. */
+    long median(List<Map<String, Long>> records, String key) {
+      var values = new ArrayList<Long>();
+      for (int i = records.size() - 1; i >= 0 && values.size() < WINDOW; i--) {
+        var value = records.get(i).get(key);
+        if (value != null) {
+          values.add(value);
+        }
+      }
+      if (values.isEmpty()) {
+        return 0;
+      }
+      Collections.sort(values);
+      return values.get(values.size() / 2);
+    }
+
+    /** List messages for tools of the latest record exceeding their rolling median. */
+    List<String> regressions(List<Map<String, Long>> records) {
+      if (records.size() < 2) {
+        return List.of();
+      }
+      var threshold = Long.parseLong(configuration.get(Property.STATS_THRESHOLD));
+      var latest = records.get(records.size() - 1);
+      var previous = records.subList(0, records.size() - 1);
+      var messages = new ArrayList<String>();
+      for (var entry : latest.entrySet()) {
+        if (!entry.getKey().startsWith("tool.")) {
+          continue;
+        }
+        var median = median(previous, entry.getKey());
+        var duration = entry.getValue();
+        if (median == 0 || duration - median < NOISE) {
+          continue;
+        }
+        var percent = (duration - median) * 100 / median;
+        if (percent > threshold) {
+          var tool = entry.getKey().substring(5);
+          var format = "Tool %s took %d ms, that's %d%% slower than its median of %d ms";
+          messages.add(String.format(format, tool, duration, percent, median));
+        }
+      }
+      return messages;
+    }
+
+    /**
+     * Order given names by the median duration recorded under their prefixed key, longest first.
+     */
+    List<String> longestFirst(String prefix, Collection<String> names) {
+      var records = records();
+      var list = new ArrayList<>(names);
+      list.sort(
+          Comparator.comparingLong((String name) -> median(records, prefix + name)).reversed());
+      return list;
+    }
+  }
+
+  /** Custom tool interface. */
+  @FunctionalInterface
+  public interface Tool {
+
+    /** Default tools. */
+    Map<String, Tool> API =
+        Map.of(
+            "build", Bach::build,
+            "cache", Bach::cache,
+            "clean", Bach::clean,
+            "format", Bach::format,
+            "help", Bach::help,
+            "link", Bach::link,
+            "resolve", Bach::resolve,
+            "stats", Bach::stats,
+            "version", Bach::version);
+
+    default String name() {
+      return getClass().getName();
+    }
+
+    int run(Bach bach);
+  }
+
+  /**
+   * Combined fingerprint of a build's inputs and outputs.
+   *
+   * <p>Inputs are the versions of Bach and Java, the arguments, all properties and the names, sizes
+   * and modification times of all files in the source and library directories. Outputs are the same
+   * file attributes of the target directory. Both hashes are stored after a successful build: if
+   * neither changed, running the same tools again would be a no-op.
+   */
+  static class Fingerprint {
+
+    /** Tools whose outcome depends only on the fingerprinted inputs and outputs. */
+    static final Set<String> TOOLS = Set.of("build", "resolve");
+
+    final Configuration configuration;
+    final List<String> arguments;
+    final Path file;
+
+    Fingerprint(Configuration configuration, List<String> arguments) {
+      this.configuration = configuration;
+      this.arguments = arguments;
+      this.file = configuration.work.resolve(".bach/fingerprint.txt");
+    }
+
+    /** Return true if all arguments denote tools that can be skipped when nothing changed. */
+    boolean applicable() {
+      return !arguments.isEmpty() && TOOLS.containsAll(arguments);
+    }
+
+    /** Hash of versions, arguments, properties and attributes of source and library files. */
+    String inputs() {
+      return inputs(sources());
+    }
+
+    /**
+     * Hash of the given lines describing the sources and attributes of the current library files.
+     *
+     * <p>Sources are described before a build, the library is hashed after it: resolving modules
+     * downloads into the library, which would otherwise never match on the first rebuild.
+     */
+    String inputs(List<String> sources) {
+      var lines = new ArrayList<>(sources);
+      lines.addAll(attributes(configuration.path(Property.PATH_LIBRARY)));
+      return hash(lines);
+    }
+
+    /** Versions, arguments, properties and attributes of source files. */
+    List<String> sources() {
+      var lines = new ArrayList<String>();
+      lines.add("bach " + VERSION);
+      lines.add("java " + System.getProperty("java.runtime.version"));
+      lines.add("arguments " + arguments);
+      for (var entry : configuration.map.entrySet()) {
+        lines.add(entry.getKey().key + '=' + entry.getValue());
+      }
+      lines.addAll(attributes(configuration.path(Property.PATH_SOURCES)));
+      return lines;
+    }
+
+    /** Hash of attributes of all generated files. */
+    String outputs() {
+      return hash(attributes(configuration.path(Property.PATH_TARGET)));
+    }
+
+    /** Compare the given inputs hash and the current outputs with the stored fingerprint. */
+    boolean matches(String inputs) {
+      try {
+        if (!Files.isRegularFile(file)) {
+          return false;
+        }
+        var lines = Files.readAllLines(file);
+        return lines.size() == 2 && lines.get(0).equals(inputs) && lines.get(1).equals(outputs());
+      } catch (IOException | UncheckedIOException e) {
+        return false;
+      }
+    }
+
+    /** Store the given inputs hash and the current outputs hash. */
+    void store(String inputs) {
+      try {
+        Files.createDirectories(file.getParent());
+        Files.write(file, List.of(inputs, outputs()));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Storing fingerprint failed: " + file, e);
+      }
+    }
+
+    /** Sorted relative path, size and modification time of each file in the given directory. */
+    static List<String> attributes(Path root) {
+      var lines = new ArrayList<String>();
+      if (!Files.isDirectory(root)) {
+        return List.of(root + " absent");
+      }
+      try {
+        Files.walkFileTree(
+            root,
+            new SimpleFileVisitor<>() {
+              @Override
+              public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                var time = attributes.lastModifiedTime().toMillis();
+                lines.add(root.relativize(path) + " " + attributes.size() + " " + time);
+                return FileVisitResult.CONTINUE;
+              }
+            });
+      } catch (IOException e) {
+        throw new UncheckedIOException("Walking directory failed: " + root, e);
+      }
+      Collections.sort(lines);
+      lines.add(0, root.toString());
+      return lines;
+    }
+
+    /** 64-bit FNV-1a hash of the given lines, cheap as it needs no security provider. */
+    static String hash(List<String> lines) {
+      var hash = 0xcbf29ce484222325L;
+      for (var line : lines) {
+        for (int i = 0; i < line.length(); i++) {
+          hash = (hash ^ line.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '\n') * 0x100000001b3L;
+      }
+      return Long.toHexString(hash);
+    }
+  }
+
+  /** Static helpers handling modules. */
+  static class Modules {
+
+    private static final Pattern MODULE_NAME_PATTERN = Pattern.compile("(?:module)\\s+(.+)\\s*\\{");
+    private static final Pattern MODULE_REQUIRES_PATTERN =
+        Pattern.compile(
+            "(?:requires)" // key word
+                + "(?:\\s+[\\w.]+)?" // optional modifiers
+                + "\\s+([\\w.]+)" // module name
                 + "(?:\\s*/\\*\\s*([\\w.\\-+]+)\\s*\\*/\\s*)?" // optional '/*' version '*/'
                 + ";"); // end marker
 
+    /** Maven coordinates, {@code group:artifact:version}, of well-known modules. */
+    static final Map<String, String> MAVEN_COORDINATES =
+        Map.of(
+            "org.apiguardian.api", "org.apiguardian:apiguardian-api:1.1.0",
+            "org.opentest4j", "org.opentest4j:opentest4j:1.2.0",
+            "org.junit.jupiter.api", "org.junit.jupiter:junit-jupiter-api:5.5.0",
+            "org.junit.jupiter.engine", "org.junit.jupiter:junit-jupiter-engine:5.5.0",
+            "org.junit.jupiter.params", "org.junit.jupiter:junit-jupiter-params:5.5.0",
+            "org.junit.platform.commons", "org.junit.platform:junit-platform-commons:1.5.0",
+            "org.junit.platform.console", "org.junit.platform:junit-platform-console:1.5.0",
+            "org.junit.platform.engine", "org.junit.platform:junit-platform-engine:1.5.0",
+            "org.junit.platform.launcher", "org.junit.platform:junit-platform-launcher:1.5.0");
+
+    /** Create URI of a jar artifact in a Maven 2 repository. */
+    static URI maven(String repository, String group, String artifact, String version) {
+      return maven(repository, group, artifact, version, "");
+    }
+
+    /** Create URI of a jar artifact with an optional classifier in a Maven 2 repository. */
+    static URI maven(
+        String repository, String group, String artifact, String version, String classifier) {
+      var path = group.replace('.', '/');
+      var suffix = classifier.isEmpty() ? "" : '-' + classifier;
+      var file = artifact + '-' + version + suffix + ".jar";
+      return URI.create(String.join("/", repository, path, artifact, version, file));
+    }
+
+    /** System module catalogs by normalized Java home directory, shared by all instances. */
+    private static final Map<Path, Catalog> CATALOGS = new ConcurrentHashMap<>();
+
+    /** Return the memoized system module catalog of the current Java runtime. */
+    static Catalog catalog() {
+      return catalog(Path.of(System.getProperty("java.home")));
+    }
+
+    /** Return the memoized system module catalog of the given Java home directory. */
+    static Catalog catalog(Path home) {
+      return CATALOGS.computeIfAbsent(home.toAbsolutePath().normalize(), Catalog::new);
+    }
+
+    /** System modules of a Java runtime, indexed by module and by package names. */
+    static final class Catalog {
+
+      final Path home;
+      final Map<String, ModuleDescriptor> descriptors;
+      final Map<String, String> packages;
+
+      private Catalog(Path home) {
+        this.home = home;
+        var current = Path.of(System.getProperty("java.home")).toAbsolutePath().normalize();
+        var descriptors = new TreeMap<String, ModuleDescriptor>();
+        if (home.equals(current)) {
+          for (var reference : ModuleFinder.ofSystem().findAll()) {
+            descriptors.put(reference.descriptor().name(), reference.descriptor());
+          }
+        } else {
+          var environment = Map.of("java.home", home.toString());
+          try (var jrt = FileSystems.newFileSystem(URI.create("jrt:/"), environment)) {
+            for (var module :
+                Util.findDirectoryEntries(jrt.getPath("modules"), Files::isDirectory)) {
+              var info = jrt.getPath("modules", module, "module-info.class");
+              try (var stream = Files.newInputStream(info)) {
+                var descriptor = ModuleDescriptor.read(stream);
+                descriptors.put(descriptor.name(), descriptor);
+              }
+            }
+          } catch (IOException e) {
+            throw new UncheckedIOException("Reading system modules failed: " + home, e);
+          }
+        }
+        var packages = new TreeMap<String, String>();
+        for (var descriptor : descriptors.values()) {
+          descriptor.packages().forEach(name -> packages.put(name, descriptor.name()));
+        }
+        this.descriptors = Collections.unmodifiableMap(descriptors);
+        this.packages = Collections.unmodifiableMap(packages);
+      }
+
+      /** Return the name of the system module containing the given package. */
+      Optional<String> module(String packageName) {
+        return Optional.ofNullable(packages.get(packageName));
+      }
+
+      @Override
+      public String toString() {
+        return "Catalog of " + descriptors.size() + " system modules in " + home;
+      }
+    }
+
     /** Enumerate all system module names. */
     static List<String> findSystemModuleNames() {
-      return ModuleFinder.ofSystem().findAll().stream()
-          .map(reference -> reference.descriptor().name())
-          .sorted()
-          .collect(Collectors.toList());
+      return List.copyOf(catalog().descriptors.keySet());
     }
 
     /** Calculate external module names. */
@@ -638,10 +4546,121 @@ public class Bach {
       }
       var externalModules = new TreeSet<>(requiredModules);
       externalModules.removeAll(declaredModules);
-      externalModules.removeAll(findSystemModuleNames()); // "java.base", "java.logging", ...
+      externalModules.removeAll(catalog().descriptors.keySet()); // "java.base", "java.logging", ...
       return Set.copyOf(externalModules);
     }
 
+    /** Set version and main class attributes of a compiled module declaration. */
+    static byte[] patchModuleInfo(byte[] bytes, Version version, String mainClass) {
+      var in = ByteBuffer.wrap(bytes);
+      in.position(8);
+      var count = in.getShort() & 0xFFFF;
+      var names = new TreeMap<Integer, String>();
+      for (int index = 1; index < count; index++) {
+        var tag = in.get();
+        switch (tag) {
+          case 1: // Utf8
+            var length = in.getShort() & 0xFFFF;
+            names.put(index, new String(bytes, in.position(), length, UTF_8));
+            in.position(in.position() + length);
+            break;
+          case 5: // Long
+          case 6: // Double
+            in.position(in.position() + 8);
+            index++;
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            in.position(in.position() + 2);
+            break;
+          case 15: // MethodHandle
+            in.position(in.position() + 3);
+            break;
+          default: // Integer, Float, references, NameAndType, (Invoke)Dynamic
+            if (tag < 3 || tag > 18) {
+              throw new IllegalArgumentException("Unknown constant pool tag: " + tag);
+            }
+            in.position(in.position() + 4);
+        }
+      }
+      var pool = in.position();
+      in.position(pool + 6); // access flags, this class, super class
+      if (in.getShort() != 0 || in.getShort() != 0 || in.getShort() != 0) {
+        throw new IllegalArgumentException("Expected module-info.class without members");
+      }
+      var attributes = in.position();
+      var constants = new ByteArrayOutputStream();
+      var next = count;
+      var versionIndex = -1;
+      var classIndex = -1;
+      var attributeIndex = -1;
+      try (var out = new DataOutputStream(constants)) {
+        if (version != null) {
+          out.writeByte(1);
+          out.writeUTF(version.toString());
+          versionIndex = next++;
+        }
+        if (mainClass != null) {
+          out.writeByte(1);
+          out.writeUTF(mainClass.replace('.', '/'));
+          out.writeByte(7);
+          out.writeShort(next);
+          classIndex = next + 1;
+          out.writeByte(1);
+          out.writeUTF("ModuleMainClass");
+          attributeIndex = next + 2;
+          next += 3;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var result = new ByteArrayOutputStream(bytes.length + 64);
+      try (var out = new DataOutputStream(result)) {
+        out.write(bytes, 0, 8);
+        out.writeShort(next);
+        out.write(bytes, 10, pool - 10);
+        constants.writeTo(out);
+        out.write(bytes, pool, attributes - pool);
+        var body = new ByteArrayOutputStream();
+        var total = 0;
+        try (var attribute = new DataOutputStream(body)) {
+          in.position(attributes);
+          var remaining = in.getShort() & 0xFFFF;
+          for (int i = 0; i < remaining; i++) {
+            var nameIndex = in.getShort() & 0xFFFF;
+            var info = new byte[in.getInt()];
+            in.get(info);
+            var name = names.get(nameIndex);
+            if ("ModuleMainClass".equals(name) && mainClass != null) {
+              continue;
+            }
+            if ("Module".equals(name) && version != null) {
+              info[4] = (byte) (versionIndex >> 8);
+              info[5] = (byte) versionIndex;
+            }
+            attribute.writeShort(nameIndex);
+            attribute.writeInt(info.length);
+            attribute.write(info);
+            total++;
+          }
+          if (mainClass != null) {
+            attribute.writeShort(attributeIndex);
+            attribute.writeInt(2);
+            attribute.writeShort(classIndex);
+            total++;
+          }
+        }
+        out.writeShort(total);
+        body.writeTo(out);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return result.toByteArray();
+    }
+
     /** Simplistic module declaration parser. */
     static ModuleDescriptor parseDeclaration(Path path) {
       if (!Util.isModuleInfo(path)) {
@@ -677,10 +4696,63 @@ public class Bach {
   /** Static helper. */
   static class Util {
 
+    /** In-process locks guarding file locks, keyed by absolute and normalized lock file path. */
+    static final Map<Path, ReentrantReadWriteLock> LOCKS = new ConcurrentHashMap<>();
+
+    /** Shared file locks held by this virtual machine, keyed like the in-process locks. */
+    private static final Map<Path, Shared> SHARED = new ConcurrentHashMap<>();
+
+    /**
+     * Worker threads for parallel file and network I/O.
+     *
+     * <p>Blocking tasks would starve the common pool, which parallel streams use by default. A
+     * parallel stream started by a task of this pool runs in this pool, too.
+     */
+    static final ForkJoinPool WORKERS =
+        new ForkJoinPool(
+            Math.max(8, Runtime.getRuntime().availableProcessors()),
+            pool -> {
+              var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+              thread.setName("bach-worker-" + thread.getPoolIndex());
+              return thread;
+            },
+            null,
+            false);
+
     private Util() {
       throw new Error();
     }
 
+    /** Compute a result on worker threads, parallel streams of the task run there as well. */
+    static <T> T compute(Supplier<T> task) {
+      return WORKERS.invoke(ForkJoinTask.adapt((Callable<T>) task::get));
+    }
+
+    /** Run an action on worker threads, parallel streams of the action run there as well. */
+    static void execute(Runnable action) {
+      WORKERS.invoke(ForkJoinTask.adapt(action));
+    }
+
+    /** Submit all tasks at once to worker threads and wait for all of them to complete. */
+    static void concurrently(List<Runnable> tasks) {
+      var submitted = tasks.stream().map(WORKERS::submit).collect(Collectors.toList());
+      RuntimeException failure = null;
+      for (var task : submitted) {
+        try {
+          task.join();
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
     /** Assigned returns P if P is non-nil and throws an exception if P is nil. */
     static <T> T assigned(T object, String name) {
       return Objects.requireNonNull(object, name + " must not be null");
@@ -788,6 +4860,301 @@ public class Bach {
       return list.toArray(String[]::new);
     }
 
+    /** Compute the SHA-256 checksum of the given file as a hexadecimal string. */
+    static String sha256(Path file) throws IOException {
+      try {
+        var digest = MessageDigest.getInstance("SHA-256");
+        return String.format("%064x", new BigInteger(1, digest.digest(Files.readAllBytes(file))));
+      } catch (NoSuchAlgorithmException e) {
+        throw new Error("SHA-256 not supported", e);
+      }
+    }
+
+    /**
+     * Acquire an exclusive lock on the given file.
+     *
+     * <p>Threads of this virtual machine are serialized by an in-process lock, other processes by a
+     * file lock held via a channel opened on the given file, which is created if needed. The
+     * returned lock is contended if its acquisition had to wait for another thread or process.
+     */
+    static Lock lock(Path file) throws IOException {
+      return lock(file, true);
+    }
+
+    /** Acquire an exclusive lock on the given file, unless it is held: then return null. */
+    static Lock tryLock(Path file) throws IOException {
+      return lock(file, false);
+    }
+
+    private static Lock lock(Path file, boolean wait) throws IOException {
+      var key = file.toAbsolutePath().normalize();
+      var local = LOCKS.computeIfAbsent(key, __ -> new ReentrantReadWriteLock()).writeLock();
+      var contended = !local.tryLock();
+      if (contended) {
+        if (!wait) {
+          return null;
+        }
+        local.lock();
+      }
+      try {
+        while (true) {
+          var channel = FileChannel.open(key, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          try {
+            if (channel.tryLock() == null) {
+              if (!wait) {
+                channel.close();
+                local.unlock();
+                return null;
+              }
+              contended = true;
+              channel.lock(); // blocks until the other process releases its lock
+            }
+          } catch (OverlappingFileLockException e) {
+            channel.close();
+            if (!wait) {
+              local.unlock();
+              return null;
+            }
+            contended = true; // held via another channel of this virtual machine
+            pause(file);
+            continue;
+          } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+          }
+          if (Files.exists(key)) {
+            return new Lock(local, channel, contended);
+          }
+          channel.close(); // deleted as stale while waiting for it, lock the new file
+        }
+      } catch (IOException | RuntimeException e) {
+        local.unlock();
+        throw e;
+      }
+    }
+
+    /**
+     * Acquire a shared lock on the given file, held while the guarded file is in use.
+     *
+     * <p>A shared lock blocks exclusive locks, but no other shared ones. All threads of this
+     * virtual machine sharing a lock on a file hold a single shared file lock on it.
+     */
+    static Lock lockShared(Path file) throws IOException {
+      var key = file.toAbsolutePath().normalize();
+      var local = LOCKS.computeIfAbsent(key, __ -> new ReentrantReadWriteLock()).readLock();
+      var contended = !local.tryLock();
+      if (contended) {
+        local.lock();
+      }
+      try {
+        var shared = SHARED.computeIfAbsent(key, Shared::new);
+        contended |= shared.acquire();
+        return new Lock(local, shared::release, contended);
+      } catch (IOException | RuntimeException e) {
+        local.unlock();
+        throw e;
+      }
+    }
+
+    private static void pause(Path file) throws InterruptedIOException {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while locking " + file);
+      }
+    }
+
+    /** Exclusive or shared lock on a file, released by closing it. */
+    static final class Lock implements AutoCloseable {
+
+      private final java.util.concurrent.locks.Lock local;
+      private final Closeable file;
+      final boolean contended;
+
+      private Lock(java.util.concurrent.locks.Lock local, Closeable file, boolean contended) {
+        this.local = local;
+        this.file = file;
+        this.contended = contended;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          file.close(); // releases the file lock
+        } finally {
+          local.unlock();
+        }
+      }
+    }
+
+    /** Shared file lock of this virtual machine, counting the threads holding it. */
+    private static final class Shared {
+
+      private final Path file;
+      private FileChannel channel;
+      private int holders;
+
+      private Shared(Path file) {
+        this.file = file;
+      }
+
+      /** Add a holder, locking the file for the first one, and return if it had to wait. */
+      synchronized boolean acquire() throws IOException {
+        var contended = false;
+        while (holders == 0) {
+          var options =
+              new OpenOption[] {
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+              };
+          var candidate = FileChannel.open(file, options);
+          try {
+            if (candidate.tryLock(0, Long.MAX_VALUE, true) == null) {
+              contended = true;
+              candidate.lock(0, Long.MAX_VALUE, true); // blocks until the exclusive one is released
+            }
+          } catch (IOException | RuntimeException e) {
+            candidate.close();
+            throw e;
+          }
+          if (Files.exists(file)) {
+            channel = candidate;
+            break;
+          }
+          candidate.close(); // deleted as stale while waiting for it, lock the new file
+        }
+        holders++;
+        return contended;
+      }
+
+      /** Remove a holder, unlocking the file after the last one. */
+      synchronized void release() throws IOException {
+        if (--holders == 0) {
+          channel.close();
+          channel = null;
+        }
+      }
+    }
+
+    /** Delete the given file, if it exists, reporting failures as unchecked exceptions. */
+    static void deleteIfExists(Path path) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Deleting file failed: " + path, e);
+      }
+    }
+
+    /**
+     * Move the given directory aside and delete it in a new thread.
+     *
+     * <p>The directory is renamed in a single step, so its path is free to use again when this
+     * method returns. Left-overs of earlier background deletions, interrupted by the end of their
+     * virtual machine, are deleted, too.
+     *
+     * @return the started thread
+     */
+    static Thread treeDeleteInBackground(Path root) throws IOException {
+      return treeDeleteInBackground(root, __ -> {});
+    }
+
+    /** Move the given directory aside and delete it in a new thread reporting progress. */
+    static Thread treeDeleteInBackground(Path root, LongConsumer progress) throws IOException {
+      var absolute = root.toAbsolutePath().normalize();
+      var parent = absolute.getParent();
+      var prefix = absolute.getFileName() + ".deleted-";
+      if (Files.exists(absolute, LinkOption.NOFOLLOW_LINKS)) {
+        var aside = Files.createTempDirectory(parent, prefix);
+        Files.move(absolute, aside.resolve(absolute.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+      }
+      var doomed = new ArrayList<Path>();
+      if (Files.isDirectory(parent)) {
+        try (var stream = Files.newDirectoryStream(parent, prefix + "*")) {
+          stream.forEach(doomed::add);
+        }
+      }
+      var thread =
+          new Thread(
+              () -> doomed.forEach(path -> treeDeleteQuietly(path, progress)), "bach-delete");
+      thread.start();
+      return thread;
+    }
+
+    private static void treeDeleteQuietly(Path root, LongConsumer progress) {
+      try {
+        treeDelete(root, __ -> true, progress);
+      } catch (Exception e) {
+        // concurrently deleted or still in use, try again next time
+      }
+    }
+
+    /** Mirror the source directory into the target directory, deleting all stale files. */
+    static long treeSync(Path source, Path target) throws IOException {
+      return treeSync(source, target, __ -> true);
+    }
+
+    /**
+     * Mirror the source directory into the target directory.
+     *
+     * <p>A target file is replaced by a copy with all attributes of its source file if it differs
+     * in size or modification time, or is a hard link to the source file. So an unchanged resource
+     * is neither read nor written, and modifying a mirrored file never modifies its source.
+     *
+     * @param stale selects target files without a source file to delete
+     * @return number of copied and deleted files
+     */
+    static long treeSync(Path source, Path target, Predicate<Path> stale) throws IOException {
+      var changes = new AtomicLong();
+      var sources = new TreeSet<Path>();
+      if (Files.isDirectory(source)) {
+        try (var stream = Files.walk(source)) {
+          stream.filter(Files::isRegularFile).forEach(file -> sources.add(source.relativize(file)));
+        }
+        execute(
+            () ->
+                sources
+                    .parallelStream()
+                    .forEach(
+                        relative -> {
+                          try {
+                            if (sync(source.resolve(relative), target.resolve(relative))) {
+                              changes.incrementAndGet();
+                            }
+                          } catch (IOException e) {
+                            throw new UncheckedIOException("Synchronizing failed: " + relative, e);
+                          }
+                        }));
+      }
+      if (Files.isDirectory(target)) {
+        try (var stream = Files.walk(target)) {
+          for (var file : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+            if (!sources.contains(target.relativize(file)) && stale.test(file)) {
+              Files.delete(file);
+              changes.incrementAndGet();
+            }
+          }
+        }
+      }
+      return changes.get();
+    }
+
+    private static boolean sync(Path source, Path target) throws IOException {
+      if (Files.exists(target)) {
+        // copies may lose sub-millisecond precision of the modification time
+        var sourceTime = Files.getLastModifiedTime(source).toMillis();
+        if (!Files.isSameFile(source, target)
+            && Files.size(source) == Files.size(target)
+            && sourceTime == Files.getLastModifiedTime(target).toMillis()) {
+          return false;
+        }
+        Files.delete(target); // changed, or linked by an earlier version
+      } else {
+        Files.createDirectories(target.getParent());
+      }
+      Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+      return true;
+    }
+
     /** Delete all files and directories from and including the root directory. */
     static void treeDelete(Path root) throws Exception {
       treeDelete(root, __ -> true);
@@ -795,20 +5162,116 @@ public class Bach {
 
     /** Delete selected files and directories from and including the root directory. */
     static void treeDelete(Path root, Predicate<Path> filter) throws Exception {
+      treeDelete(root, filter, __ -> {});
+    }
+
+    /**
+     * Delete selected files and directories from and including the root directory.
+     *
+     * <p>Sibling subtrees are deleted in parallel on worker threads, each directory after its
+     * entries. A selected directory containing unselected entries can't be deleted: it fails the
+     * deletion with a {@link DirectoryNotEmptyException}. Symbolic links are deleted, never
+     * followed.
+     *
+     * @param progress receives the number of deleted paths every {@value #PROGRESS_INTERVAL}
+     *     deletions and at the end, possibly from different threads
+     * @return number of deleted paths
+     */
+    static long treeDelete(Path root, Predicate<Path> filter, LongConsumer progress)
+        throws Exception {
       // trivial case: delete existing empty directory or single file
       if (filter.test(root)) {
         try {
-          Files.deleteIfExists(root);
-          return;
+          var deleted = Files.deleteIfExists(root) ? 1 : 0;
+          progress.accept(deleted);
+          return deleted;
         } catch (DirectoryNotEmptyException ignored) {
           // fall-through
         }
       }
-      // default case: walk the tree...
-      try (var stream = Files.walk(root)) {
-        var selected = stream.filter(filter).sorted((p, q) -> -p.compareTo(q));
-        for (var path : selected.collect(Collectors.toList())) {
-          Files.deleteIfExists(path);
+      if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+        if (Files.notExists(root, LinkOption.NOFOLLOW_LINKS)) {
+          throw new NoSuchFileException(root.toString());
+        }
+        return 0; // an unselected file
+      }
+      // default case: delete the tree bottom-up...
+      var counter = new AtomicLong();
+      try {
+        WORKERS.invoke(new TreeDeletion(root, filter, counter, progress));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      progress.accept(counter.get());
+      return counter.get();
+    }
+
+    /** Number of deleted paths between two progress reports. */
+    static final long PROGRESS_INTERVAL = 1000;
+
+    /** Post-order deletion of a directory's selected entries, forking one task per subtree. */
+    private static final class TreeDeletion extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private final Path directory;
+      private final transient Predicate<Path> filter;
+      private final AtomicLong counter;
+      private final transient LongConsumer progress;
+
+      TreeDeletion(
+          Path directory, Predicate<Path> filter, AtomicLong counter, LongConsumer progress) {
+        this.directory = directory;
+        this.filter = filter;
+        this.counter = counter;
+        this.progress = progress;
+      }
+
+      @Override
+      protected void compute() {
+        var subtrees = new ArrayList<TreeDeletion>();
+        try {
+          // visit entries only, their attributes are read along with the directory listing
+          Files.walkFileTree(
+              directory,
+              Set.of(),
+              1,
+              new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes)
+                    throws IOException {
+                  if (attributes.isDirectory()) {
+                    subtrees.add(new TreeDeletion(path, filter, counter, progress));
+                  } else if (filter.test(path)) {
+                    delete(path);
+                  }
+                  return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e)
+                    throws IOException {
+                  if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE; // deleted concurrently
+                  }
+                  throw e;
+                }
+              });
+          invokeAll(subtrees);
+          if (filter.test(directory)) {
+            delete(directory);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      private void delete(Path path) throws IOException {
+        if (Files.deleteIfExists(path)) {
+          var count = counter.incrementAndGet();
+          if (count % PROGRESS_INTERVAL == 0) {
+            progress.accept(count);
+          }
         }
       }
     }
@@ -0,0 +1,109 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Measure end-to-end builds of synthetic projects in forked Bach processes.
+ *
+ * <ul>
+ *   <li>{@code cold} first build after generating the project
+ *   <li>{@code warm} full rebuild after deleting all generated files
+ *   <li>{@code noop} build without any change
+ *   <li>{@code edit} build after a single source file was modified
+ * </ul>
+ */
+public class BuildHarness {
+
+  /** Run harness: {@code <directory> <sizes, like 10,100,1000> [generator options...]}. */
+  public static void main(String... args) throws Exception {
+    var root = Path.of(args[0]);
+    var options = new ArrayList<>(List.of(args).subList(2, args.length));
+    var results = new ArrayList<String>();
+    for (var size : args[1].split(",")) {
+      options.removeIf(option -> option.startsWith("modules="));
+      options.add("modules=" + size);
+      var project = SyntheticProject.of(options);
+      var directory = root.resolve("modules-" + size);
+      delete(directory);
+      project.generate(directory);
+      System.out.println(project);
+      results.add(measure(project, directory, "cold"));
+      delete(directory.resolve("bin"));
+      results.add(measure(project, directory, "warm"));
+      results.add(measure(project, directory, "noop"));
+      var module = SyntheticProject.name(project.modules / 2);
+      var source = directory.resolve("src/" + module + "/main/java/" + module + "/C0.java");
+      Files.writeString(source, Files.readString(source) + "// edited\n");
+      results.add(measure(project, directory, "edit"));
+    }
+    var json = root.resolve("results.json");
+    Files.write(json, List.of("[", String.join(",\n", results), "]"));
+    System.out.println("Results written to " + json.toUri());
+  }
+
+  /** Build the project in a new process and return the result as a JSON object. */
+  static String measure(SyntheticProject project, Path directory, String scenario)
+      throws Exception {
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var classPath = System.getProperty("java.class.path");
+    var absolute = new ArrayList<String>();
+    for (var element : classPath.split(File.pathSeparator)) {
+      absolute.add(Path.of(element).toAbsolutePath().toString());
+    }
+    var builder = new ProcessBuilder(java, "-cp", String.join(File.pathSeparator, absolute));
+    builder.command().addAll(List.of("Bach", "build"));
+    builder.directory(directory.toFile());
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(directory.resolve("build-" + scenario + ".log").toFile());
+    var start = System.nanoTime();
+    var code = builder.start().waitFor();
+    var millis = (System.nanoTime() - start) / 1_000_000;
+    System.out.printf("  %-5s %,9d ms%s%n", scenario, millis, code == 0 ? "" : " FAILED: " + code);
+    var format =
+        "  {\"modules\": %d, \"fanOut\": %d, \"files\": %d, \"tests\": %s,"
+            + " \"scenario\": \"%s\", \"millis\": %d, \"code\": %d}";
+    return String.format(
+        format,
+        project.modules,
+        project.fanOut,
+        project.files,
+        project.tests,
+        scenario,
+        millis,
+        code);
+  }
+
+  static void delete(Path root) throws IOException {
+    if (Files.notExists(root)) {
+      return;
+    }
+    try (var stream = Files.walk(root)) {
+      for (var path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+}
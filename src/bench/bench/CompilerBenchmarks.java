@@ -0,0 +1,108 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure in-memory compilation of a synthetic realm, with and without shared file managers.
+ *
+ * <p>The test realm has the modular jars of the main realm on its module path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompilerBenchmarks {
+
+  @Param({"10", "50"})
+  int modules;
+
+  @Param({"main", "test"})
+  String realm;
+
+  /** Reuse the file manager of the previous compilation, or configure a new one each time. */
+  @Param({"false", "true"})
+  boolean shared;
+
+  Path root;
+  Object bach;
+  Object jigsaw;
+  Object target;
+
+  @Setup
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("bach-bench-compiler-");
+    SyntheticProject.of(List.of("modules=" + modules, "tests=" + realm.equals("test")))
+        .generate(root);
+    Files.write(
+        root.resolve("bach.properties"),
+        List.of(
+            "path.sources=" + root.resolve("src").toString().replace('\\', '/'),
+            "path.library=" + root.resolve("lib").toString().replace('\\', '/'),
+            "path.target=" + root.resolve("bin").toString().replace('\\', '/')));
+    bach = Internals.bach(root);
+    jigsaw = Internals.jigsaw(bach);
+    target = Internals.mainRealm(bach);
+    if (realm.equals("test")) {
+      Internals.compile(jigsaw, target);
+      target = Internals.testRealm(bach);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void forget() {
+    if (!shared) {
+      Internals.closeFileManagers();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Internals.closeFileManagers();
+    BuildHarness.delete(root);
+  }
+
+  @Benchmark
+  public int compile() {
+    var code = Internals.compile(jigsaw, target);
+    if (code != 0) {
+      throw new AssertionError("compile returned " + code);
+    }
+    return code;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measure downloads served by an in-process HTTP server bound to the loopback address. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DownloaderBenchmarks {
+
+  @Param({"65536", "4194304"})
+  int bytes;
+
+  HttpServer server;
+  URI uri;
+  Path destination;
+  Object downloader;
+
+  @Setup
+  public void setup() throws IOException {
+    var payload = new byte[bytes];
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/artifact.jar",
+        exchange -> {
+          exchange.getResponseHeaders().add("Last-Modified", "Tue, 15 Nov 1994 08:12:31 GMT");
+          var head = "HEAD".equals(exchange.getRequestMethod());
+          exchange.sendResponseHeaders(200, head ? -1 : payload.length);
+          if (!head) {
+            try (var body = exchange.getResponseBody()) {
+              body.write(payload);
+            }
+          }
+          exchange.close();
+        });
+    server.start();
+    uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/artifact.jar");
+    destination = Files.createTempDirectory("bach-bench-downloader-");
+    downloader = Internals.downloader(Internals.bach(Path.of("")), destination);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.stop(0);
+    try (var stream = Files.walk(destination)) {
+      for (var path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /** Fresh download: the target file is deleted before each invocation. */
+  @State(Scope.Thread)
+  public static class Missing {
+    @Setup(Level.Invocation)
+    public void delete(DownloaderBenchmarks benchmarks) throws IOException {
+      Files.deleteIfExists(benchmarks.destination.resolve("artifact.jar"));
+    }
+  }
+
+  @Benchmark
+  public Path download(Missing missing) {
+    return Internals.download(downloader, uri);
+  }
+
+  @Benchmark
+  public Path downloadUpToDate() {
+    return Internals.download(downloader, uri);
+  }
+}
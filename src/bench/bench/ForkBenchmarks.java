@@ -0,0 +1,90 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measure short-lived tools forked via 'java' with the default and the tuned launch profile. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ForkBenchmarks {
+
+  /** Main modules and classes of JDK tools, launched to print their version. */
+  static final Map<String, List<String>> TOOLS =
+      Map.of(
+          "javac", List.of("--module", "jdk.compiler/com.sun.tools.javac.Main", "--version"),
+          "javap", List.of("--module", "jdk.jdeps/com.sun.tools.javap.Main", "-version"));
+
+  @Param({"javac", "javap"})
+  String tool;
+
+  /** Launch profile, the first tuned launch dumps the class data sharing archive. */
+  @Param({"default", "tuned"})
+  String profile;
+
+  Path root;
+  Object bach;
+  Object[] arguments;
+
+  @Setup
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("bach-bench-fork-");
+    Files.write(
+        root.resolve("bach.properties"),
+        List.of(
+            "java.profile=" + profile,
+            "path.cache=" + root.resolve("cache").toString().replace('\\', '/')));
+    bach = Internals.bach(root);
+    arguments = TOOLS.get(tool).toArray();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    BuildHarness.delete(root);
+  }
+
+  @Benchmark
+  public int fork() {
+    var code = Internals.run(bach, "java", arguments);
+    if (code != 0) {
+      throw new AssertionError("java returned " + code);
+    }
+    return code;
+  }
+}
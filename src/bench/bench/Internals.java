@@ -0,0 +1,278 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.module.ModuleDescriptor;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Bridge to package-private members of the default-package {@code Bach} class.
+ *
+ * <p>JMH refuses benchmark classes in the default package and named packages can't refer to
+ * default-package types, so all members are looked up once via method handles.
+ */
+final class Internals {
+
+  private static final MethodHandle PARSE_DECLARATION;
+  private static final MethodHandle FIND_EXTERNAL_MODULE_NAMES;
+  private static final MethodHandle FIND;
+  private static final MethodHandle IS_JAVA_FILE;
+  private static final MethodHandle CONFIGURATION_OF;
+  private static final MethodHandle NEW_BACH;
+  private static final MethodHandle NEW_PROJECT;
+  private static final MethodHandle NEW_DOWNLOADER;
+  private static final MethodHandle DOWNLOAD;
+  private static final MethodHandle MAIN_REALM;
+  private static final MethodHandle TEST_REALM;
+  private static final MethodHandle NEW_JIGSAW;
+  private static final MethodHandle COMPILE;
+  private static final MethodHandle CLOSE_FILE_MANAGERS;
+  private static final MethodHandle RUNNER;
+  private static final MethodHandle RUN;
+
+  static {
+    try {
+      var bach = Class.forName("Bach");
+      var configuration = Class.forName("Bach$Configuration");
+      var downloader = Class.forName("Bach$Downloader");
+      var modules = lookup("Bach$Modules");
+      var util = lookup("Bach$Util");
+      PARSE_DECLARATION =
+          modules.findStatic(
+              modules.lookupClass(),
+              "parseDeclaration",
+              methodType(ModuleDescriptor.class, String.class));
+      FIND_EXTERNAL_MODULE_NAMES =
+          modules.findStatic(
+              modules.lookupClass(),
+              "findExternalModuleNames",
+              methodType(Set.class, Iterable.class));
+      FIND =
+          util.findStatic(
+              util.lookupClass(), "find", methodType(List.class, Iterable.class, Predicate.class));
+      IS_JAVA_FILE =
+          util.findStatic(util.lookupClass(), "isJavaFile", methodType(boolean.class, Path.class));
+      CONFIGURATION_OF =
+          lookup("Bach$Configuration")
+              .findStatic(configuration, "of", methodType(configuration, Path.class))
+              .asType(methodType(Object.class, Path.class));
+      NEW_BACH =
+          lookup("Bach")
+              .findConstructor(
+                  bach, methodType(void.class, PrintWriter.class, PrintWriter.class, configuration))
+              .asType(methodType(Object.class, PrintWriter.class, PrintWriter.class, Object.class));
+      NEW_PROJECT =
+          lookup("Bach$Project")
+              .findConstructor(Class.forName("Bach$Project"), methodType(void.class, bach))
+              .asType(methodType(Object.class, Object.class));
+      NEW_DOWNLOADER =
+          lookup("Bach$Downloader")
+              .findConstructor(downloader, methodType(void.class, bach, Path.class))
+              .asType(methodType(Object.class, Object.class, Path.class));
+      DOWNLOAD =
+          lookup("Bach$Downloader")
+              .findVirtual(downloader, "download", methodType(Path.class, URI.class, boolean.class))
+              .asType(methodType(Path.class, Object.class, URI.class, boolean.class));
+      var project = Class.forName("Bach$Project");
+      var realm = Class.forName("Bach$Project$Realm");
+      var jigsaw = Class.forName("Bach$Jigsaw");
+      MAIN_REALM =
+          MethodHandles.filterReturnValue(
+                  lookup("Bach").findGetter(bach, "project", project),
+                  lookup("Bach$Project")
+                      .findGetter(project, "main", Class.forName("Bach$Project$MainRealm")))
+              .asType(methodType(Object.class, Object.class));
+      TEST_REALM =
+          MethodHandles.filterReturnValue(
+                  lookup("Bach").findGetter(bach, "project", project),
+                  lookup("Bach$Project")
+                      .findGetter(project, "test", Class.forName("Bach$Project$TestRealm")))
+              .asType(methodType(Object.class, Object.class));
+      NEW_JIGSAW =
+          lookup("Bach$Jigsaw")
+              .findConstructor(jigsaw, methodType(void.class, bach))
+              .asType(methodType(Object.class, Object.class));
+      COMPILE =
+          lookup("Bach$Jigsaw")
+              .findVirtual(jigsaw, "compile", methodType(int.class, realm))
+              .asType(methodType(int.class, Object.class, Object.class));
+      var fileManagers = Class.forName("Bach$FileManagers");
+      CLOSE_FILE_MANAGERS =
+          MethodHandles.filterReturnValue(
+              lookup("Bach$FileManagers").findStaticGetter(fileManagers, "SHARED", fileManagers),
+              lookup("Bach$FileManagers")
+                  .findVirtual(fileManagers, "close", methodType(void.class)));
+      var runner = Class.forName("Bach$Runner");
+      RUNNER =
+          lookup("Bach")
+              .findGetter(bach, "runner", runner)
+              .asType(methodType(Object.class, Object.class));
+      RUN =
+          lookup("Bach$Runner")
+              .findVirtual(runner, "run", methodType(int.class, String.class, Object[].class))
+              .asFixedArity()
+              .asType(methodType(int.class, Object.class, String.class, Object[].class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static MethodHandles.Lookup lookup(String name) throws ReflectiveOperationException {
+    return MethodHandles.privateLookupIn(Class.forName(name), MethodHandles.lookup());
+  }
+
+  static ModuleDescriptor parseDeclaration(String source) {
+    try {
+      return (ModuleDescriptor) PARSE_DECLARATION.invokeExact(source);
+    } catch (Throwable throwable) {
+      throw new AssertionError("parseDeclaration failed", throwable);
+    }
+  }
+
+  static Set<?> findExternalModuleNames(Iterable<ModuleDescriptor> descriptors) {
+    try {
+      return (Set<?>) FIND_EXTERNAL_MODULE_NAMES.invokeExact(descriptors);
+    } catch (Throwable throwable) {
+      throw new AssertionError("findExternalModuleNames failed", throwable);
+    }
+  }
+
+  static List<?> find(Iterable<Path> roots, Predicate<Path> filter) {
+    try {
+      return (List<?>) FIND.invokeExact(roots, filter);
+    } catch (Throwable throwable) {
+      throw new AssertionError("find failed", throwable);
+    }
+  }
+
+  static boolean isJavaFile(Path path) {
+    try {
+      return (boolean) IS_JAVA_FILE.invokeExact(path);
+    } catch (Throwable throwable) {
+      throw new AssertionError("isJavaFile failed", throwable);
+    }
+  }
+
+  /** Create configuration instance for the given path. */
+  static Object configuration(Path path) {
+    try {
+      return (Object) CONFIGURATION_OF.invokeExact(path);
+    } catch (Throwable throwable) {
+      throw new AssertionError("Configuration.of failed", throwable);
+    }
+  }
+
+  /** Create a silent Bach instance for the given path. */
+  static Object bach(Path path) {
+    var silent = new PrintWriter(Writer.nullWriter());
+    try {
+      return (Object) NEW_BACH.invokeExact(silent, silent, configuration(path));
+    } catch (Throwable throwable) {
+      throw new AssertionError("new Bach failed", throwable);
+    }
+  }
+
+  static Object project(Object bach) {
+    try {
+      return (Object) NEW_PROJECT.invokeExact(bach);
+    } catch (Throwable throwable) {
+      throw new AssertionError("new Project failed", throwable);
+    }
+  }
+
+  static Object downloader(Object bach, Path destination) {
+    try {
+      return (Object) NEW_DOWNLOADER.invokeExact(bach, destination);
+    } catch (Throwable throwable) {
+      throw new AssertionError("new Downloader failed", throwable);
+    }
+  }
+
+  static Path download(Object downloader, URI uri) {
+    try {
+      return (Path) DOWNLOAD.invokeExact(downloader, uri, false);
+    } catch (Throwable throwable) {
+      throw new AssertionError("download failed", throwable);
+    }
+  }
+
+  static Object mainRealm(Object bach) {
+    try {
+      return (Object) MAIN_REALM.invokeExact(bach);
+    } catch (Throwable throwable) {
+      throw new AssertionError("project.main failed", throwable);
+    }
+  }
+
+  static Object testRealm(Object bach) {
+    try {
+      return (Object) TEST_REALM.invokeExact(bach);
+    } catch (Throwable throwable) {
+      throw new AssertionError("project.test failed", throwable);
+    }
+  }
+
+  static Object jigsaw(Object bach) {
+    try {
+      return (Object) NEW_JIGSAW.invokeExact(bach);
+    } catch (Throwable throwable) {
+      throw new AssertionError("new Jigsaw failed", throwable);
+    }
+  }
+
+  static int compile(Object jigsaw, Object realm) {
+    try {
+      return (int) COMPILE.invokeExact(jigsaw, realm);
+    } catch (Throwable throwable) {
+      throw new AssertionError("compile failed", throwable);
+    }
+  }
+
+  /** Run the named tool with the runner of the given Bach instance. */
+  /** Close all idle file managers shared by in-process compilations. */
+  static void closeFileManagers() {
+    try {
+      CLOSE_FILE_MANAGERS.invokeExact();
+    } catch (Throwable throwable) {
+      throw new AssertionError("FileManagers.SHARED.close failed", throwable);
+    }
+  }
+
+  static int run(Object bach, String name, Object... arguments) {
+    try {
+      var runner = (Object) RUNNER.invokeExact(bach);
+      return (int) RUN.invokeExact(runner, name, arguments);
+    } catch (Throwable throwable) {
+      throw new AssertionError("runner.run failed", throwable);
+    }
+  }
+
+  private Internals() {
+    throw new Error();
+  }
+}
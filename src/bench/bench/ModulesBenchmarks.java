@@ -0,0 +1,90 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.lang.module.ModuleDescriptor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ModulesBenchmarks {
+
+  private static final String DECLARATION =
+      String.join(
+          "\n",
+          "/** Module comment. */",
+          "module foo.bar { // 3.3-ALPHA",
+          "  requires foo.bax; // @1.3",
+          "  requires foo.bay/*342*/;",
+          "  requires transitive java.logging;",
+          "  requires static java.sql;",
+          "  exports foo.bar;",
+          "  uses foo.bar.spi.Service;",
+          "}");
+
+  /** Synthetic module graph with a few intra-project edges and some external modules. */
+  @State(Scope.Benchmark)
+  public static class Graph {
+
+    @Param({"10", "100", "1000"})
+    int modules;
+
+    List<ModuleDescriptor> descriptors;
+
+    @Setup
+    public void setup() {
+      descriptors = new ArrayList<>();
+      for (int i = 0; i < modules; i++) {
+        var builder = ModuleDescriptor.newModule("m" + i).requires("java.logging");
+        for (int j = Math.max(0, i - 3); j < i; j++) {
+          builder.requires("m" + j);
+        }
+        builder.requires("external" + (i % 7));
+        descriptors.add(builder.build());
+      }
+    }
+  }
+
+  @Benchmark
+  public ModuleDescriptor parseDeclaration() {
+    return Internals.parseDeclaration(DECLARATION);
+  }
+
+  @Benchmark
+  public Set<?> findExternalModuleNames(Graph graph) {
+    return Internals.findExternalModuleNames(graph.descriptors);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/** Reproducible multi-module project generator extending the layout of the demo project. */
+public class SyntheticProject {
+
+  /** Generate a project: {@code <directory> [modules=10] [fanOut=3] [files=10] [tests=true]...}. */
+  public static void main(String... args) throws IOException {
+    var project = of(List.of(args).subList(1, args.length));
+    project.generate(Path.of(args[0]));
+    System.out.println("Generated " + project + " in " + Path.of(args[0]).toUri());
+  }
+
+  /** Create generator instance from {@code key=value} options, unknown keys are rejected. */
+  static SyntheticProject of(List<String> options) {
+    int modules = 10, fanOut = 3, files = 10, resourceBytes = 0;
+    var tests = true;
+    for (var option : options) {
+      var key = option.substring(0, option.indexOf('='));
+      var value = option.substring(key.length() + 1);
+      switch (key) {
+        case "modules":
+          modules = Integer.parseInt(value);
+          break;
+        case "fanOut":
+          fanOut = Integer.parseInt(value);
+          break;
+        case "files":
+          files = Integer.parseInt(value);
+          break;
+        case "tests":
+          tests = Boolean.parseBoolean(value);
+          break;
+        case "resourceBytes":
+          resourceBytes = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + option);
+      }
+    }
+    return new SyntheticProject(modules, fanOut, files, tests, resourceBytes);
+  }
+
+  /** Number of modules to generate. */
+  final int modules;
+  /** Maximum number of other modules each module requires. */
+  final int fanOut;
+  /** Number of Java source files in each main module. */
+  final int files;
+  /** Generate test realm with in-module tests. */
+  final boolean tests;
+  /** Size of the binary resource file of each main module, 0 disables resources. */
+  final int resourceBytes;
+
+  SyntheticProject(int modules, int fanOut, int files, boolean tests, int resourceBytes) {
+    this.modules = modules;
+    this.fanOut = fanOut;
+    this.files = Math.max(1, files);
+    this.tests = tests;
+    this.resourceBytes = resourceBytes;
+  }
+
+  /** Module name of the given index, using letters to avoid terminal digits warnings. */
+  static String name(int index) {
+    var letters = new char[4];
+    for (int i = letters.length - 1; i >= 0; i--, index /= 26) {
+      letters[i] = (char) ('a' + index % 26);
+    }
+    return "m" + new String(letters);
+  }
+
+  /** Pseudo-randomly selected, but reproducible set of modules required by the indexed module. */
+  List<String> requires(int index) {
+    var random = new Random(index);
+    var indices = new TreeSet<Integer>();
+    while (indices.size() < Math.min(fanOut, index)) {
+      indices.add(random.nextInt(index));
+    }
+    var names = new ArrayList<String>();
+    indices.forEach(i -> names.add(name(i)));
+    return names;
+  }
+
+  /** Write all files of this project into the given directory. */
+  void generate(Path root) throws IOException {
+    Files.createDirectories(root);
+    Files.write(
+        root.resolve("bach.properties"),
+        List.of("name=synthetic", "version=1", "path.sources=src", "path.target=bin"));
+    for (int index = 0; index < modules; index++) {
+      generate(root.resolve("src"), index);
+    }
+  }
+
+  /** Write all files of the indexed module. */
+  void generate(Path src, int index) throws IOException {
+    var module = name(index);
+    var requires = requires(index);
+    var main = Files.createDirectories(src.resolve(module).resolve("main"));
+    var java = Files.createDirectories(main.resolve("java").resolve(module));
+    Files.write(main.resolve("java/module-info.java"), declaration("module", module, requires));
+    for (int i = 0; i < files; i++) {
+      var lines = new ArrayList<String>();
+      lines.add("package " + module + ";");
+      lines.add("");
+      lines.add("public class C" + i + " {");
+      lines.add("  private C" + i + "() {}");
+      lines.add("");
+      lines.add("  public static int value() {");
+      var expression = new StringBuilder(String.valueOf(i));
+      if (i > 0) {
+        expression.append(" + C").append(i - 1).append(".value()");
+      } else {
+        requires.forEach(name -> expression.append(" + ").append(name).append(".C0.value()"));
+      }
+      lines.add("    return " + expression + ";");
+      lines.add("  }");
+      lines.add("}");
+      Files.write(java.resolve("C" + i + ".java"), lines);
+    }
+    if (resourceBytes > 0) {
+      var bytes = new byte[resourceBytes];
+      new Random(index).nextBytes(bytes);
+      var resources = Files.createDirectories(main.resolve("resources").resolve(module));
+      Files.write(resources.resolve("data.bin"), bytes);
+    }
+    if (!tests) {
+      return;
+    }
+    var test = Files.createDirectories(src.resolve(module).resolve("test"));
+    var testJava = Files.createDirectories(test.resolve("java").resolve(module));
+    Files.write(
+        test.resolve("java/module-info.java"), declaration("open module", module, requires));
+    Files.write(
+        testJava.resolve("C0Test.java"),
+        List.of(
+            "package " + module + ";",
+            "",
+            "class C0Test {",
+            "  static boolean test() {",
+            "    return C0.value() >= 0;",
+            "  }",
+            "}"));
+  }
+
+  private static List<String> declaration(String kind, String module, List<String> requires) {
+    var lines = new ArrayList<String>();
+    lines.add(kind + " " + module + " {");
+    lines.add("  exports " + module + ";");
+    requires.forEach(name -> lines.add("  requires " + name + ";"));
+    lines.add("}");
+    return lines;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "SyntheticProject[modules=%d, fanOut=%d, files=%d, tests=%s, resourceBytes=%d]",
+        modules, fanOut, files, tests, resourceBytes);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Bach - Java Shell Builder
+ * Copyright (C) 2019 Christian Stein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UtilBenchmarks {
+
+  /** Number of files in the synthetic tree, half of them are Java source files. */
+  @Param({"100", "1000", "10000"})
+  int files;
+
+  Path root;
+
+  @Setup
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("bach-bench-util-");
+    for (int i = 0; i < files; i++) {
+      var directory = Files.createDirectories(root.resolve("d" + i / 100).resolve("e" + i / 10));
+      var extension = i % 2 == 0 ? ".java" : ".txt";
+      Files.writeString(directory.resolve("F" + i + extension), "class F" + i + " {}");
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (var stream = Files.walk(root)) {
+      for (var path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public List<?> findJavaFiles() {
+    return Internals.find(List.of(root), Internals::isJavaFile);
+  }
+}
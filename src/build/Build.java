@@ -16,11 +16,16 @@
  */
 
 import java.io.File;
+import java.lang.module.ModuleDescriptor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /** OS-agnostic build program. */
 class Build {
@@ -36,19 +41,38 @@ class Build {
     build.document();
     build.jar();
     build.validate();
+    if (Boolean.getBoolean("bach.bench")) {
+      build.bench();
+    }
   }
 
   private final Bach bach = Bach.of();
   private final Path target = Path.of("target/build");
   private final Path targetBinMain = target.resolve("bin/main");
   private final Path targetBinTest = target.resolve("bin/test");
+  private final Path targetTestResources = target.resolve("test-resources");
   private final Path targetJavadoc = target.resolve("javadoc");
   private final Path targetJars = target.resolve("jars");
+  private final Path targetBench = target.resolve("bench");
 
   private void clean() throws Exception {
     System.out.println("\n[clean]");
 
-    Bach.Util.treeDelete(target);
+    if (Boolean.getBoolean("bach.clean")) {
+      Bach.Util.treeDeleteInBackground(target);
+      return;
+    }
+    // regenerate everything from scratch, but keep jars and resources for incremental updates
+    if (Files.isDirectory(target)) {
+      try (var stream = Files.newDirectoryStream(target)) {
+        for (var path : stream) {
+          var name = path.getFileName().toString();
+          if (!Set.of("jars", "test-resources").contains(name) && !name.contains(".deleted-")) {
+            Bach.Util.treeDeleteInBackground(path);
+          }
+        }
+      }
+    }
   }
 
   private void format() {
@@ -69,10 +93,11 @@ class Build {
     treeWalk(targetBinMain);
   }
 
-  private void test() {
+  private void test() throws Exception {
     System.out.println("\n[test // download]");
+    var cache = bach.configuration.path(Bach.Property.PATH_CACHE);
     var junit =
-        bach.new Downloader(Bach.USER_HOME.resolve(".bach/tool/junit"))
+        bach.new Downloader(cache.resolve("tool/junit"))
             .download("org.junit.platform", "junit-platform-console-standalone", "1.5.0");
 
     System.out.println("\n[test // compile]");
@@ -86,7 +111,7 @@ class Build {
     javac.add(String.join(File.pathSeparator, targetBinMain.toString(), junit.toString()));
     javac.addAll(Bach.Util.find(List.of(Path.of("src", "test")), Bach.Util::isJavaFile));
     bach.run(0, "javac", javac.toArray(Object[]::new));
-    // Bach.Util.treeCopy(Path.of("src/test-resources"), targetBinTest);
+    Bach.Util.treeSync(Path.of("src/test-resources"), targetTestResources);
     treeWalk(targetBinTest);
 
     System.out.println("\n[test // run]");
@@ -100,6 +125,7 @@ class Build {
         String.join(
             File.pathSeparator,
             targetBinTest.toString(),
+            targetTestResources.toString(),
             targetBinMain.toString(),
             junit.toString()));
     launcher.add("org.junit.platform.console.ConsoleLauncher");
@@ -129,36 +155,14 @@ class Build {
 
   private void jar() throws Exception {
     System.out.println("\n[jar]");
-    Files.createDirectories(targetJars);
-    bach.run(
-        0,
-        "jar",
-        "--create",
-        "--file",
-        targetJars.resolve("bach-" + Bach.VERSION + ".jar"),
-        "--main-class",
-        "Bach",
-        "-C",
-        targetBinMain,
-        ".");
-    bach.run(
-        0,
-        "jar",
-        "--create",
-        "--file",
-        targetJars.resolve("bach-" + Bach.VERSION + "-sources.jar"),
-        "-C",
-        "src/bach",
-        ".");
-    bach.run(
-        0,
-        "jar",
-        "--create",
-        "--file",
-        targetJars.resolve("bach-" + Bach.VERSION + "-javadoc.jar"),
-        "-C",
-        targetJavadoc,
-        ".");
+    var packager = bach.new Packager("deflate"); // release artifacts are always compressed
+    var version = ModuleDescriptor.Version.parse(Bach.VERSION);
+    var main = targetJars.resolve("bach-" + Bach.VERSION + ".jar");
+    packager.jar(main, List.of(targetBinMain), version, "Bach");
+    var sources = targetJars.resolve("bach-" + Bach.VERSION + "-sources.jar");
+    packager.jar(sources, List.of(Path.of("src/bach")), null, null);
+    var javadoc = targetJars.resolve("bach-" + Bach.VERSION + "-javadoc.jar");
+    packager.jar(javadoc, List.of(targetJavadoc), null, null);
 
     System.out.println("\nArtifacts in " + targetJars.toUri());
     treeWalk(targetJars);
@@ -175,6 +179,95 @@ class Build {
     bach.run(0, "java", "-jar", jar, "tool", "javac", "--version");
   }
 
+  private void bench() throws Exception {
+    System.out.println("\n[bench // download]");
+    var cache = bach.configuration.path(Bach.Property.PATH_CACHE);
+    var downloader = bach.new Downloader(cache.resolve("tool/jmh"));
+    var jmh =
+        List.of(
+            downloader.download("org.openjdk.jmh", "jmh-core", "1.21"),
+            downloader.download("org.openjdk.jmh", "jmh-generator-annprocess", "1.21"),
+            downloader.download("net.sf.jopt-simple", "jopt-simple", "4.6"),
+            downloader.download("org.apache.commons", "commons-math3", "3.2"));
+
+    System.out.println("\n[bench // compile]");
+    var targetBinBench = targetBench.resolve("bin");
+    var classPath = new ArrayList<String>();
+    classPath.add(targetBinMain.toString());
+    jmh.forEach(jar -> classPath.add(jar.toString()));
+    var javac = new ArrayList<>();
+    javac.add("-d");
+    javac.add(targetBinBench);
+    javac.add("--class-path");
+    javac.add(String.join(File.pathSeparator, classPath));
+    javac.addAll(Bach.Util.find(List.of(Path.of("src", "bench")), Bach.Util::isJavaFile));
+    bach.run(0, "javac", javac.toArray(Object[]::new));
+
+    classPath.add(0, targetBinBench.toString());
+    var synthetic = System.getProperty("bach.bench.synthetic");
+    if (synthetic != null) {
+      System.out.println("\n[bench // synthetic]");
+      bach.run(
+          0,
+          "java",
+          "--class-path",
+          String.join(File.pathSeparator, classPath),
+          "bench.BuildHarness",
+          targetBench.resolve("synthetic"),
+          synthetic);
+    }
+
+    System.out.println("\n[bench // run]");
+    var results = targetBench.resolve("results.json");
+    var java = new ArrayList<>();
+    java.add("--class-path");
+    java.add(String.join(File.pathSeparator, classPath));
+    java.add("org.openjdk.jmh.Main");
+    java.add("-rf");
+    java.add("json");
+    java.add("-rff");
+    java.add(results);
+    java.add(System.getProperty("bach.bench.include", ".*"));
+    bach.run(0, "java", java.toArray(Object[]::new));
+
+    var baseline = System.getProperty("bach.bench.baseline");
+    if (baseline == null) {
+      System.out.println("\nBenchmark results written to " + results.toUri());
+      return;
+    }
+    System.out.println("\n[bench // compare with " + baseline + "]");
+    var expected = benchScores(Path.of(baseline));
+    var actual = benchScores(results);
+    for (var entry : actual.entrySet()) {
+      var base = expected.get(entry.getKey());
+      var delta =
+          base == null ? "(new)" : String.format("%+.1f%%", (entry.getValue() - base) * 100 / base);
+      System.out.printf("%-70s %12.3f %s%n", entry.getKey(), entry.getValue(), delta);
+    }
+  }
+
+  /** Map benchmark names including their parameters to primary scores of a JMH JSON result. */
+  private static Map<String, Double> benchScores(Path json) throws Exception {
+    var benchmark = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    var params = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)}");
+    var score = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([^,\\s]+)");
+    var scores = new TreeMap<String, Double>();
+    for (var result : Files.readString(json).split("\\{\\s*\"jmhVersion\"")) {
+      var benchmarkMatcher = benchmark.matcher(result);
+      var scoreMatcher = score.matcher(result);
+      if (!benchmarkMatcher.find() || !scoreMatcher.find()) {
+        continue;
+      }
+      var name = benchmarkMatcher.group(1);
+      var paramsMatcher = params.matcher(result);
+      if (paramsMatcher.find()) {
+        name += '(' + paramsMatcher.group(1).replaceAll("[\"\\s]", "").replace(':', '=') + ')';
+      }
+      scores.put(name, Double.parseDouble(scoreMatcher.group(1)));
+    }
+    return scores;
+  }
+
   /** Walk directory tree structure. */
   private static void treeWalk(Path root) {
     try (var stream = Files.walk(root)) {
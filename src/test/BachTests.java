@@ -48,7 +48,9 @@ class BachTests {
             "Running API tool named \\QBach$Tool$$Lambda\\E.+",
             Bach.VERSION,
             ">> noop(<empty>)",
-            "Running configured tool named 'Probe$NoopTool'..."),
+            "Running configured tool named 'Probe$NoopTool'...",
+            "Tools run in-process: [noop, version]",
+            "Tools run in new processes: []"),
         probe.lines());
   }
 }
@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CacheTests {
+
+  @Test
+  void leastRecentlyUsedArtifactsAreEvictedFirst(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "1g", "P1D");
+    assertEquals(410, cache.artifacts().stream().mapToLong(artifact -> artifact.size).sum());
+
+    var evicted = cache.evict(300, cache.ttl());
+    assertEquals(
+        List.of(cache.root.resolve("tool/junit/a.jar"), cache.root.resolve("image/h1")),
+        paths(evicted));
+    assertFalse(Files.exists(cache.root.resolve("image/h1")));
+    assertFalse(Files.exists(cache.root.resolve("image/h1.evicted")));
+    assertTrue(Files.exists(cache.root.resolve("tool/junit/b.jar")));
+    assertEquals(2, Files.readAllLines(cache.log).size(), "compacted access log");
+  }
+
+  @Test
+  void expiredArtifactsAreEvicted(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "1g", "PT4S");
+    var evicted = cache.evict(cache.budget(), cache.ttl());
+    assertEquals(List.of(cache.root.resolve("tool/junit/a.jar")), paths(evicted));
+  }
+
+  @Test
+  void lockedArtifactsAreNotEvicted(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "1g", "P1D");
+    try (var lock = Bach.Util.lock(cache.root.resolve("tool/junit/a.jar.lock"))) {
+      assertFalse(lock.contended);
+      var evicted = cache.evict(300, cache.ttl());
+      assertEquals(List.of(cache.root.resolve("image/h1")), paths(evicted));
+    }
+    assertTrue(Files.exists(cache.root.resolve("tool/junit/a.jar")));
+  }
+
+  @Test
+  void artifactsInUseAreNotEvicted(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "1g", "PT4S");
+    var a = cache.root.resolve("tool/junit/a.jar");
+    try (var first = cache.use(a);
+        var second = cache.use(a)) {
+      assertFalse(first.contended || second.contended, "shared locks don't block each other");
+      var evicted = paths(cache.evict(0, cache.ttl()));
+      assertFalse(evicted.contains(a), evicted.toString());
+      assertTrue(Files.exists(a));
+    }
+    assertEquals(List.of(a), paths(cache.evict(0, cache.ttl())));
+    assertFalse(Files.exists(cache.root.resolve("tool/junit/a.jar.lock")), "stale lock deleted");
+  }
+
+  @Test
+  void touchRecordsAccessesOfCachedArtifactsOnly(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "1g", "P1D");
+    var b = cache.root.resolve("tool/junit/b.jar");
+    cache.touch(b);
+    cache.touch(temp.resolve("elsewhere.jar"));
+    var accesses = cache.accesses();
+    assertEquals(4, accesses.size(), accesses.toString());
+    assertTrue(System.currentTimeMillis() - accesses.get(b) < 60_000);
+  }
+
+  @Test
+  void cacheToolPrintsUsageAndPrunes(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "300", "P1D");
+    Files.writeString(cache.root.resolve("cache.evicted"), "just now"); // no background eviction
+    var probe = new Probe(temp, temp.resolve("work"), overrides(temp, "300", "P1D"));
+    assertEquals(0, probe.bach.main(List.of("cache")), probe.toString());
+    var lines = probe.lines();
+    assertTrue(lines.contains("Cache " + cache.root + " uses 410 of 300 bytes"), probe.toString());
+    assertTrue(lines.stream().anyMatch(line -> line.matches("\\s+tool/junit\\s+2 artifact.+")));
+    assertTrue(lines.contains("Evicted 2 artifact(s) freeing 300 bytes"), probe.toString());
+  }
+
+  @Test
+  void evictionRunsInBackgroundOncePerInterval(@TempDir Path temp) throws Exception {
+    var cache = cache(temp, "300", "P1D");
+    var stamp = cache.root.resolve("cache.evicted");
+    cache.evictInBackground();
+    var deadline = System.currentTimeMillis() + 10_000;
+    while (!Files.exists(stamp)) {
+      assertTrue(System.currentTimeMillis() < deadline, "background eviction didn't finish");
+      Thread.sleep(10);
+    }
+    Bach.Util.lock(cache.root.resolve("cache.lock")).close(); // wait for the eviction to finish
+    assertFalse(Files.exists(cache.root.resolve("tool/junit/a.jar")));
+    var time = Files.getLastModifiedTime(stamp);
+    write(cache.root.resolve("tool/junit/c.jar"), 1000);
+    cache.evictInBackground();
+    Thread.sleep(100);
+    assertTrue(Files.exists(cache.root.resolve("tool/junit/c.jar")));
+    assertEquals(time, Files.getLastModifiedTime(stamp));
+  }
+
+  @Test
+  void budgetIsParsedWithUnitSuffix() {
+    var probe = new Probe(Path.of(""), Path.of("target/probe"), Map.of("cache.budget", "3m"));
+    assertEquals(3 * 1024 * 1024, probe.bach.new Cache().budget());
+  }
+
+  /** Create a cache with a few artifacts accessed at different times. */
+  private static Bach.Cache cache(Path temp, String budget, String ttl) throws Exception {
+    var root = temp.resolve("cache");
+    write(root.resolve("tool/junit/a.jar"), 100);
+    write(root.resolve("tool/junit/b.jar"), 100);
+    write(root.resolve("image/h1/release"), 50);
+    write(root.resolve("image/h1/lib/modules"), 150);
+    write(root.resolve("maven/models.txt"), 10);
+    var now = System.currentTimeMillis();
+    Files.write(
+        root.resolve("access.log"),
+        List.of(
+            (now - 5000) + " tool/junit/a.jar",
+            (now - 1000) + " tool/junit/b.jar",
+            (now - 3000) + " image/h1",
+            (now - 2000) + " image/h1",
+            now + " maven/models.txt"));
+    var probe = new Probe(temp, temp.resolve("work"), overrides(temp, budget, ttl));
+    return probe.bach.new Cache();
+  }
+
+  private static Map<String, String> overrides(Path temp, String budget, String ttl) {
+    return Map.of(
+        "path.cache", temp.resolve("cache").toString(), "cache.budget", budget, "cache.ttl", ttl);
+  }
+
+  private static void write(Path file, int size) throws Exception {
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[size]);
+  }
+
+  private static List<Path> paths(List<Bach.Cache.Artifact> artifacts) {
+    return artifacts.stream().map(artifact -> artifact.path).collect(Collectors.toList());
+  }
+}
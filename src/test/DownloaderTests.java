@@ -0,0 +1,184 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DownloaderTests {
+
+  private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 08:12:31 GMT";
+  private static final FileTime TIME = FileTime.from(Instant.parse("1994-11-15T08:12:31Z"));
+
+  private final byte[] payload = new byte[100_000];
+  private final List<String> ranges = new CopyOnWriteArrayList<>();
+  private volatile int truncate = -1; // number of bytes sent before the connection is dropped
+  private volatile CountDownLatch gate = new CountDownLatch(0); // holds back all responses
+  private HttpServer server;
+  private URI uri;
+
+  @BeforeEach
+  void start() throws IOException {
+    new Random(123).nextBytes(payload);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/artifact.jar", this::handle);
+    server.start();
+    uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/artifact.jar");
+  }
+
+  @AfterEach
+  void stop() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      gate.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    var headers = exchange.getResponseHeaders();
+    headers.add("Last-Modified", LAST_MODIFIED);
+    headers.add("Accept-Ranges", "bytes");
+    var range = exchange.getRequestHeaders().getFirst("Range");
+    var condition = exchange.getRequestHeaders().getFirst("If-Range");
+    ranges.add(range + " if " + condition);
+    var from = 0;
+    var to = payload.length - 1;
+    if (range != null && (condition == null || condition.equals(LAST_MODIFIED))) {
+      var bounds = range.substring("bytes=".length()).split("-", -1);
+      from = Integer.parseInt(bounds[0]);
+      to = bounds[1].isEmpty() ? to : Integer.parseInt(bounds[1]);
+      headers.add("Content-Range", "bytes " + from + "-" + to + "/" + payload.length);
+    }
+    var length = to - from + 1;
+    exchange.sendResponseHeaders(length == payload.length ? 200 : 206, length);
+    try (var body = exchange.getResponseBody()) {
+      if (truncate >= 0) {
+        body.write(payload, from, truncate);
+        body.flush();
+        throw new IOException("Connection dropped"); // abort the transfer
+      }
+      body.write(payload, from, length);
+    }
+  }
+
+  @Test
+  void interruptedTransferIsResumed(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    var downloader = probe.bach.new Downloader(temp);
+    truncate = 30_000;
+    assertThrows(UncheckedIOException.class, () -> downloader.download(uri, false));
+    assertFalse(Files.exists(temp.resolve("artifact.jar")), "no corrupt target file");
+    var part = temp.resolve("artifact.jar.part");
+    assertEquals(30_000, Files.size(part));
+    assertEquals(TIME, Files.getLastModifiedTime(part));
+
+    truncate = -1;
+    var target = downloader.download(uri, false);
+    assertArrayEquals(payload, Files.readAllBytes(target));
+    assertEquals(TIME, Files.getLastModifiedTime(target));
+    assertFalse(Files.exists(part));
+    assertEquals("bytes=30000- if " + LAST_MODIFIED, ranges.get(1));
+    assertEquals(1, probe.bach.history.counters.get("download.resumed"));
+  }
+
+  @Test
+  void stalePartialFileIsReplaced(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    var part = temp.resolve("artifact.jar.part");
+    Files.write(part, Arrays.copyOf(payload, 1000));
+    Files.setLastModifiedTime(part, FileTime.from(Instant.parse("2000-01-01T00:00:00Z")));
+
+    var target = probe.bach.new Downloader(temp).download(uri, false);
+    assertArrayEquals(payload, Files.readAllBytes(target));
+    assertNull(probe.bach.history.counters.get("download.resumed"));
+  }
+
+  @Test
+  void largeArtifactIsDownloadedInSegments(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    var downloader = probe.bach.new Downloader(temp);
+    downloader.segmentThreshold = 1000;
+
+    var target = downloader.download(uri, false);
+    assertArrayEquals(payload, Files.readAllBytes(target));
+    assertEquals(4, probe.bach.history.counters.get("download.segments"));
+    assertEquals(4, ranges.size());
+    assertTrue(ranges.contains("bytes=75000-99999 if " + LAST_MODIFIED), ranges.toString());
+  }
+
+  @Test
+  void concurrentDownloadsOfSameArtifactShareOneTransfer(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    gate = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(8);
+    try {
+      var futures = new ArrayList<Future<Path>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> probe.bach.new Downloader(temp).download(uri, false)));
+      }
+      var key = temp.resolve("artifact.jar.lock").toAbsolutePath().normalize();
+      var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!Bach.Util.LOCKS.containsKey(key) || Bach.Util.LOCKS.get(key).getQueueLength() < 7) {
+        assertTrue(System.nanoTime() < deadline, "threads didn't queue up in time");
+        Thread.sleep(10);
+      }
+      gate.countDown();
+      for (var future : futures) {
+        assertArrayEquals(payload, Files.readAllBytes(future.get()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, ranges.size(), ranges.toString());
+    assertEquals(1, probe.bach.history.counters.get("download.misses"));
+    assertEquals(7, probe.bach.history.counters.get("download.hits"));
+  }
+
+  @Test
+  void downloadWaitsForLockHeldByAnotherProcess(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    CompletableFuture<Path> download;
+    var file = temp.resolve("artifact.jar.lock");
+    try (var channel =
+        FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      channel.lock(); // released by closing the channel
+      download =
+          CompletableFuture.supplyAsync(() -> probe.bach.new Downloader(temp).download(uri, false));
+      Thread.sleep(200);
+      assertFalse(download.isDone());
+      assertEquals(List.of(), ranges);
+    }
+    assertArrayEquals(payload, Files.readAllBytes(download.get(10, TimeUnit.SECONDS)));
+    assertEquals(1, probe.bach.history.counters.get("download.misses"));
+  }
+}
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FingerprintTests {
+
+  @Test
+  void unchangedBuildMatches(@TempDir Path temp) throws Exception {
+    var fingerprint = fingerprint(temp, Map.of(), "build");
+    assertTrue(fingerprint.applicable());
+    var inputs = fingerprint.inputs();
+    assertEquals(inputs, fingerprint.inputs());
+    assertFalse(fingerprint.matches(inputs), "nothing stored, yet");
+
+    fingerprint.store(inputs);
+    assertTrue(fingerprint.matches(inputs));
+    assertTrue(fingerprint(temp, Map.of(), "build").matches(inputs));
+  }
+
+  @Test
+  void changedInputsDontMatch(@TempDir Path temp) throws Exception {
+    var fingerprint = fingerprint(temp, Map.of(), "build");
+    var inputs = fingerprint.inputs();
+    fingerprint.store(inputs);
+
+    var source = temp.resolve("src/app/main/java/module-info.java");
+    Files.setLastModifiedTime(source, FileTime.from(Instant.parse("2019-08-01T00:00:00Z")));
+    assertNotEquals(inputs, fingerprint.inputs(), "touched source");
+    Files.setLastModifiedTime(source, FileTime.from(Instant.EPOCH));
+    assertEquals(inputs, fingerprint.inputs());
+
+    Files.writeString(temp.resolve("lib/main/a.jar"), "a");
+    assertNotEquals(inputs, fingerprint.inputs(), "new library jar");
+    Files.delete(temp.resolve("lib/main/a.jar"));
+    assertEquals(inputs, fingerprint.inputs());
+
+    assertNotEquals(inputs, fingerprint(temp, Map.of("version", "2"), "build").inputs());
+    assertNotEquals(inputs, fingerprint(temp, Map.of(), "resolve").inputs());
+  }
+
+  @Test
+  void libraryResolvedByBuildMatches(@TempDir Path temp) throws Exception {
+    var fingerprint = fingerprint(temp, Map.of(), "build");
+    var sources = fingerprint.sources(); // described before the build
+    Files.writeString(temp.resolve("lib/main/a.jar"), "a"); // downloaded by the build
+    fingerprint.store(fingerprint.inputs(sources));
+    assertTrue(fingerprint.matches(fingerprint.inputs()), "first rebuild");
+  }
+
+  @Test
+  void changedOutputsDontMatch(@TempDir Path temp) throws Exception {
+    var fingerprint = fingerprint(temp, Map.of(), "build");
+    var inputs = fingerprint.inputs();
+    fingerprint.store(inputs);
+
+    Files.delete(temp.resolve("bin/main/modules/app.jar"));
+    assertFalse(fingerprint.matches(inputs), "deleted jar");
+    fingerprint.store(inputs);
+    assertTrue(fingerprint.matches(inputs));
+  }
+
+  @Test
+  void onlyBuildingToolsAreApplicable(@TempDir Path temp) throws Exception {
+    assertFalse(fingerprint(temp, Map.of()).applicable());
+    assertFalse(fingerprint(temp, Map.of(), "build", "link").applicable());
+    assertFalse(fingerprint(temp, Map.of(), "format").applicable());
+    assertTrue(fingerprint(temp, Map.of(), "resolve", "build").applicable());
+  }
+
+  private static Bach.Fingerprint fingerprint(
+      Path temp, Map<String, String> more, String... arguments) throws Exception {
+    var info =
+        Files.createDirectories(temp.resolve("src/app/main/java")).resolve("module-info.java");
+    if (Files.notExists(info)) {
+      Files.writeString(info, "module app {}");
+      Files.setLastModifiedTime(info, FileTime.from(Instant.EPOCH));
+      Files.createDirectories(temp.resolve("lib/main"));
+      Files.writeString(
+          Files.createDirectories(temp.resolve("bin/main/modules")).resolve("app.jar"), "app");
+    }
+    var overrides = new HashMap<String, String>(more);
+    overrides.put("path.sources", temp.resolve("src").toString());
+    overrides.put("path.library", temp.resolve("lib").toString());
+    overrides.put("path.target", temp.resolve("bin").toString());
+    var probe = new Probe(temp, temp.resolve("work"), overrides);
+    return new Bach.Fingerprint(probe.bach.configuration, List.of(arguments));
+  }
+}
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryTests {
+
+  @Test
+  void successfulBuildsAppendRecords(@TempDir Path work) {
+    var probe = new Probe(Path.of(""), work);
+    assertEquals(0, probe.bach.main(List.of("noop")));
+    assertEquals(0, probe.bach.main(List.of("noop", "version")));
+    assertEquals(1, probe.bach.main(List.of("fail")));
+    var records = probe.bach.history.records();
+    assertEquals(2, records.size(), probe.toString());
+    assertTrue(records.get(0).containsKey("tool.noop"));
+    assertTrue(records.get(1).containsKey("tool.noop"));
+    assertFalse(records.get(1).containsKey("tool.version"), "reporting tools are no builds");
+    assertEquals(1, records.get(1).get("modules.main"));
+    assertTrue(records.get(1).get("time") >= records.get(0).get("time"));
+  }
+
+  @Test
+  void emptyBuildsAreNotRecorded(@TempDir Path work) {
+    var probe = new Probe(Path.of(""), work);
+    assertEquals(0, probe.bach.main(List.of()));
+    assertTrue(Files.notExists(probe.bach.history.file));
+  }
+
+  @Test
+  void reportingRunsAreNotRecorded(@TempDir Path work) {
+    assertEquals(0, new Probe(Path.of(""), work).bach.main(List.of("noop")));
+    assertEquals(0, new Probe(Path.of(""), work).bach.main(List.of("stats")));
+    assertEquals(0, new Probe(Path.of(""), work).bach.main(List.of("version", "help")));
+    var probe = new Probe(Path.of(""), work);
+    assertEquals(1, probe.bach.history.records().size());
+    assertEquals(0, probe.bach.main(List.of("stats")));
+    assertTrue(probe.lines().stream().anyMatch(line -> line.startsWith("1 build(s)")));
+    assertTrue(probe.lines().stream().anyMatch(line -> line.trim().startsWith("tool.noop")));
+    assertTrue(probe.lines().stream().noneMatch(line -> line.trim().startsWith("tool.stats")));
+  }
+
+  @Test
+  void nestedRunsAreRecordedUnderTheirOwnNamesOnly(@TempDir Path work) {
+    var probe =
+        new Probe(Path.of(""), work) {
+          @Override
+          Map<String, Bach.Tool> tools() {
+            return Map.of(
+                "outer", bach -> sleep(100) + bach.runner.run("inner"), "inner", __ -> sleep(500));
+          }
+        };
+    assertEquals(0, probe.bach.main(List.of("outer")), probe.toString());
+    var counters = probe.bach.history.counters;
+    assertTrue(counters.get("tool.inner") >= 500, counters.toString());
+    assertTrue(counters.get("tool.outer") >= 100, counters.toString());
+    assertTrue(counters.get("tool.outer") < 500, "self-time only: " + counters);
+  }
+
+  @Test
+  void regressionsAreFlagged(@TempDir Path work) throws Exception {
+    var probe = new Probe(Path.of(""), work);
+    var history = probe.bach.history;
+    Files.createDirectories(history.file.getParent());
+    Files.write(
+        history.file,
+        List.of(
+            "time=1 tool.javac=1000 tool.jar=300",
+            "time=2 tool.javac=1100 tool.jar=200",
+            "time=3 tool.javac=900 tool.jar=250",
+            "time=4 tool.javac=2000 tool.jar=260"));
+    var records = history.records();
+    assertEquals(1000, history.median(records.subList(0, 3), "tool.javac"));
+    assertLinesMatch(
+        List.of("Tool javac took 2000 ms, that's 100% slower than its median of 1000 ms"),
+        history.regressions(records));
+    assertEquals(
+        List.of("javac", "jar", "noop"),
+        history.longestFirst("tool.", List.of("noop", "jar", "javac")));
+    assertEquals(0, probe.bach.stats());
+    assertTrue(probe.errors().get(0).startsWith("Tool javac took 2000 ms"), probe.toString());
+  }
+
+  private static int sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return 0;
+  }
+}
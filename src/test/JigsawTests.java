@@ -0,0 +1,281 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JigsawTests {
+
+  @Test
+  void buildDemo() throws Exception {
+    var probe = new Probe();
+    var main = probe.bach.project.main;
+    assertEquals("demo/bin/main", main.target.toString().replace('\\', '/'));
+    assertEquals(0, probe.bach.main(List.of("build")), probe.toString());
+    assertFalse(Files.exists(main.classes()), "compiled in memory");
+    assertTrue(Files.isRegularFile(main.jar("de.sormuras.bach.demo")));
+    assertLinesMatch(
+        List.of(
+            ">> build(<empty>)",
+            ">> BUILD >>",
+            "Compiling main modules: [de.sormuras.bach.demo]",
+            ">> javac(.+)",
+            ">> COMPILE >>",
+            "Packaged .+ with 3 entries \\(\\d changed\\) in .+ ms",
+            "No test modules declared.",
+            "Tools run in-process: .+",
+            "Tools run in new processes: \\[]"),
+        probe.lines().subList(probe.lines().indexOf(">> build(<empty>)"), probe.lines().size()));
+  }
+
+  @Test
+  void buildDemoInDirectoryMode(@TempDir Path temp) throws Exception {
+    var target = temp.resolve("bin").toString();
+    var overrides = Map.of("path.target", target, "package.mode", "directory");
+    var probe = new Probe(Path.of(""), Path.of("target/probe"), overrides);
+    var project = probe.bach.project;
+    var jar = project.main.jar("de.sormuras.bach.demo");
+    Files.createDirectories(jar.getParent());
+    Files.writeString(jar, "stale jar from a previous build");
+    assertEquals(0, probe.bach.main(List.of("build")), probe.toString());
+    assertTrue(
+        Files.isRegularFile(
+            project.main.classes().resolve("de.sormuras.bach.demo/module-info.class")));
+    assertFalse(Files.exists(jar), "stale jar would shadow the class directory");
+    assertTrue(project.test.modulePath().contains(project.main.classes()));
+    assertLinesMatch(
+        List.of(
+            ">> build(<empty>)",
+            ">> BUILD >>",
+            "Skip packaging de.sormuras.bach.demo, .+",
+            "No test modules declared.",
+            "Tools run in-process: .+",
+            "Tools run in new processes: \\[]"),
+        probe.lines().subList(probe.lines().indexOf(">> build(<empty>)"), probe.lines().size()));
+  }
+
+  @Test
+  void staleOutputsArePruned(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("src/a/main/java"));
+    Files.writeString(a.resolve("module-info.java"), "module a { exports p; }");
+    Files.createDirectories(a.resolve("p"));
+    Files.writeString(
+        a.resolve("p/A.java"), "package p; public class A { Object o = new Object() {}; }");
+    Files.writeString(a.resolve("p/B.java"), "package p; class B {}");
+    var b = Files.createDirectories(temp.resolve("src/b/main/java"));
+    Files.writeString(b.resolve("module-info.java"), "module b {}");
+
+    var first = probe(temp, "1", "deflate", "true");
+    assertEquals(0, first.bach.main(List.of("build")), first.toString());
+    var main = first.bach.project.main;
+    assertTrue(Files.isRegularFile(main.classes().resolve("a/p/B.class")));
+    assertTrue(Files.isRegularFile(main.jar("b")));
+    assertTrue(Files.readString(main.target.resolve("outputs.txt")).contains("B.class"));
+
+    Files.delete(a.resolve("p/B.java"));
+    Bach.Util.treeDelete(temp.resolve("src/b"));
+    var second = probe(temp, "2", "deflate", "true");
+    assertEquals(0, second.bach.main(List.of("build")), second.toString());
+    assertFalse(Files.exists(main.classes().resolve("a/p/B.class")), "source deleted");
+    assertTrue(Files.isRegularFile(main.classes().resolve("a/p/A.class")));
+    assertTrue(Files.isRegularFile(main.classes().resolve("a/p/A$1.class")));
+    assertFalse(Files.exists(main.classes().resolve("b")), "module deleted");
+    assertFalse(Files.exists(main.jar("b")), "module deleted");
+    assertFalse(Files.exists(main.jar("a")), "version changed");
+    try (var jar = new JarFile(second.bach.project.main.jar("a").toFile())) {
+      assertTrue(jar.getEntry("p/A.class") != null);
+      assertTrue(jar.getEntry("p/B.class") == null);
+    }
+    assertEquals(4, second.bach.history.counters.get("outputs.pruned"));
+  }
+
+  @Test
+  void resourcesAreCopiedIntoClassDirectories(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("src/a/main/java"));
+    Files.writeString(a.resolve("module-info.java"), "module a {}");
+    var resources = Files.createDirectories(temp.resolve("src/a/main/resources/data"));
+    Files.writeString(resources.resolve("big.bin"), "big");
+    Files.writeString(resources.resolve("gone.txt"), "gone");
+
+    var first = probe(temp, "1", "directory");
+    assertEquals(0, first.bach.main(List.of("build")), first.toString());
+    var classes = first.bach.project.main.classes().resolve("a");
+    assertEquals("big", Files.readString(classes.resolve("data/big.bin")));
+    assertFalse(Files.exists(first.bach.project.main.jar("a")), "no jar in directory mode");
+    assertEquals(2, first.bach.history.counters.get("resources.synced"));
+
+    Files.delete(resources.resolve("gone.txt"));
+    var second = probe(temp, "1", "deflate");
+    assertEquals(0, second.bach.main(List.of("build")), second.toString());
+    assertFalse(Files.exists(classes.resolve("data/gone.txt")), "pruned");
+    assertEquals(null, second.bach.history.counters.get("resources.synced"), "nothing changed");
+    try (var jar = new JarFile(second.bach.project.main.jar("a").toFile())) {
+      assertTrue(jar.getEntry("data/big.bin") != null);
+      assertTrue(jar.getEntry("data/gone.txt") == null);
+    }
+  }
+
+  @Test
+  void classesAreCompiledIntoJarsInMemory(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("src/a/main/java"));
+    Files.writeString(a.resolve("module-info.java"), "module a {}");
+    Files.createDirectories(a.resolve("p"));
+    Files.writeString(a.resolve("p/A.java"), "package p; class A { Object o = new Object() {}; }");
+    var resources = Files.createDirectories(temp.resolve("src/a/main/resources/data"));
+    Files.writeString(resources.resolve("a.txt"), "a");
+
+    var timestamp = "2019-08-01T12:34:56Z";
+    var first = probe(temp, "1", "deflate", "true", timestamp);
+    assertEquals(0, first.bach.main(List.of("build")), first.toString());
+    var main = first.bach.project.main;
+    var jar = main.jar("a");
+    var expected = Files.readAllBytes(jar);
+    assertTrue(Files.isDirectory(main.classes()));
+
+    var second = probe(temp, "1", "deflate", "false", timestamp);
+    assertEquals(0, second.bach.main(List.of("build")), second.toString());
+    assertFalse(Files.exists(main.classes()), "stale class directory deleted");
+    assertTrue(second.bach.history.counters.containsKey("package.main.a"), "ordering key");
+    assertEquals(null, second.bach.history.counters.get("resources.synced"));
+    assertArrayEquals(expected, Files.readAllBytes(jar), "same as packaging class directories");
+
+    var third = probe(temp, "1");
+    assertEquals(0, third.bach.main(List.of("build")), third.toString());
+    assertTrue(third.lines().stream().noneMatch(line -> line.contains("Deleted class directory")));
+    try (var file = new JarFile(jar.toFile())) {
+      var names = file.stream().map(JarEntry::getName).collect(Collectors.toList());
+      assertEquals(
+          List.of(
+              "META-INF/",
+              "META-INF/MANIFEST.MF",
+              "data/",
+              "data/a.txt",
+              "module-info.class",
+              "p/",
+              "p/A$1.class",
+              "p/A.class"),
+          names);
+      var source = Files.getLastModifiedTime(a.resolve("p/A.java")).toInstant();
+      var time = file.getEntry("p/A.class").getTimeLocal().toInstant(ZoneOffset.UTC);
+      var delta = Duration.between(source, time).abs();
+      assertTrue(delta.toMillis() <= 2000, "time of source file: " + time);
+    }
+    var compiled = Files.readAllBytes(jar);
+
+    var fourth = probe(temp, "1");
+    var jigsaw = fourth.bach.new Jigsaw();
+    jigsaw.mapThreshold = 0;
+    assertEquals(0, jigsaw.compile(fourth.bach.project.main), fourth.toString());
+    assertArrayEquals(compiled, Files.readAllBytes(jar), "same with mapped class files");
+    assertTrue(fourth.lines().stream().anyMatch(line -> line.contains("(0 changed)")));
+  }
+
+  @Test
+  void largeClassFilesAreMemoryMapped() throws Exception {
+    var probe = new Probe();
+    var jigsaw = probe.bach.new Jigsaw();
+    jigsaw.mapThreshold = 10;
+    var bytes = new byte[100];
+    Arrays.fill(bytes, (byte) 7);
+    var small = jigsaw.new MemoryClass("a", "p/Small.class", 0);
+    try (var stream = small.openOutputStream()) {
+      stream.write(bytes, 0, 10);
+    }
+    var large = jigsaw.new MemoryClass("a", "p/Large.class", 0);
+    try (var stream = large.openOutputStream()) {
+      stream.write(bytes);
+    }
+    assertFalse(small.mapped());
+    assertTrue(large.mapped());
+    try (var stream = large.openInputStream()) {
+      assertArrayEquals(bytes, stream.readAllBytes());
+    }
+  }
+
+  @Test
+  void fileManagerIsSharedWhileArchivesAreUnchanged(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("src/a/main/java"));
+    Files.writeString(a.resolve("module-info.java"), "module a {}");
+    var lib = Files.createDirectories(temp.resolve("lib/main"));
+    var fileManagers = new Bach.FileManagers();
+    var probe = probe(temp, "1");
+    var counters = probe.bach.history.counters;
+    var jigsaw = probe.bach.new Jigsaw();
+    jigsaw.fileManagers = fileManagers;
+    try {
+      assertEquals(0, jigsaw.compile(probe.bach.project.main), probe.toString());
+      assertEquals(0, jigsaw.compile(probe.bach.project.main), probe.toString());
+      assertEquals(1, counters.get("filemanager.misses"));
+      assertEquals(1, counters.get("filemanager.hits"));
+
+      var foo = Files.createDirectories(temp.resolve("foo"));
+      Files.writeString(foo.resolve("foo.txt"), "foo");
+      probe.bach.new Packager().jar(lib.resolve("foo.jar"), List.of(foo), null, null);
+      assertEquals(0, jigsaw.compile(probe.bach.project.main), probe.toString());
+      assertEquals(2, counters.get("filemanager.misses"), "jar added");
+
+      var b = Files.createDirectories(temp.resolve("src/b/main/java"));
+      Files.writeString(b.resolve("module-info.java"), "module b { requires a; }");
+      var second = probe(temp, "1");
+      var other = second.bach.new Jigsaw();
+      other.fileManagers = fileManagers;
+      assertEquals(0, other.compile(second.bach.project.main), second.toString());
+      assertEquals(1, second.bach.history.counters.get("filemanager.misses"), "module added");
+      assertTrue(Files.isRegularFile(second.bach.project.main.jar("b")));
+
+      var third = probe(temp, "1");
+      var next = third.bach.new Jigsaw();
+      next.fileManagers = fileManagers;
+      assertEquals(0, next.compile(third.bach.project.main), third.toString());
+      assertEquals(1, third.bach.history.counters.get("filemanager.hits"), "another build");
+    } finally {
+      fileManagers.close();
+    }
+  }
+
+  private static Probe probe(Path temp, String version) {
+    return probe(temp, version, "deflate");
+  }
+
+  private static Probe probe(Path temp, String version, String mode) {
+    return probe(temp, version, mode, "false");
+  }
+
+  private static Probe probe(Path temp, String version, String mode, String classes) {
+    return probe(temp, version, mode, classes, "");
+  }
+
+  private static Probe probe(
+      Path temp, String version, String mode, String classes, String timestamp) {
+    var overrides =
+        Map.of(
+            "path.sources",
+            temp.resolve("src").toString(),
+            "path.library",
+            temp.resolve("lib").toString(),
+            "path.target",
+            temp.resolve("bin").toString(),
+            "version",
+            version,
+            "package.mode",
+            mode,
+            "compile.classes",
+            classes,
+            "package.timestamp",
+            timestamp);
+    return new Probe(temp, temp.resolve("work"), overrides);
+  }
+}
@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.module.FindException;
+import java.lang.module.ModuleDescriptor;
+import java.lang.module.ResolutionException;
+import java.lang.module.ResolvedModule;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LibraryTests {
+
+  @Test
+  void indexIsCachedByJarHash(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires a; }");
+    source(temp, "a", "module a { requires b; exports a; }", "a");
+    source(temp, "b", "module b { exports b; }", "b");
+    jar(probe, temp, "a");
+    jar(probe, temp, "b");
+
+    var library = probe.bach.new Library();
+    assertEquals(2, library.jars.size());
+    var a = library.jars.get(temp.resolve("lib/main/a.jar")).descriptor;
+    assertEquals("a", a.name());
+    assertEquals("1.2.3", a.rawVersion().orElseThrow());
+    assertEquals(Set.of("a"), a.packages());
+    assertTrue(a.requires().stream().anyMatch(requires -> requires.name().equals("b")));
+    assertEquals(2, probe.bach.history.counters.get("library.misses"));
+
+    var cached = probe.bach.new Library();
+    assertEquals(a, cached.jars.get(temp.resolve("lib/main/a.jar")).descriptor);
+    assertEquals(2, probe.bach.history.counters.get("library.misses"));
+    assertEquals(2, probe.bach.history.counters.get("library.hits"));
+
+    var resolved = cached.resolve(probe.bach.project.main).modules();
+    var names = resolved.stream().map(ResolvedModule::name).collect(Collectors.toSet());
+    assertTrue(names.containsAll(Set.of("app", "a", "b", "java.base")), names.toString());
+  }
+
+  @Test
+  void missingModuleFailsFast(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires a; }");
+    source(temp, "a", "module a { requires b; exports a; }", "a");
+    source(temp, "b", "module b { exports b; }", "b");
+    jar(probe, temp, "a");
+
+    var library = probe.bach.new Library();
+    var e = assertThrows(FindException.class, () -> library.resolve(probe.bach.project.main));
+    assertEquals("Module b not found, required by a", e.getMessage());
+    assertEquals(1, probe.bach.main(List.of("build")));
+    assertTrue(probe.errors().contains("Resolving main modules failed: " + e.getMessage()));
+  }
+
+  @Test
+  void splitPackageFailsFast(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires a; requires b; }");
+    source(temp, "a", "module a { exports p; }", "p");
+    source(temp, "b", "module b { exports p; }", "p");
+    jar(probe, temp, "a");
+    jar(probe, temp, "b");
+
+    var library = probe.bach.new Library();
+    var e = assertThrows(ResolutionException.class, () -> library.resolve(probe.bach.project.main));
+    assertTrue(e.getMessage().contains("export package p to module app"), e.getMessage());
+  }
+
+  @Test
+  void automaticModulesAreCached(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires foo.bar; }");
+    var classes = Files.createDirectories(temp.resolve("auto/classes/foo"));
+    Files.writeString(classes.resolve("Foo.class"), "");
+    var jar = temp.resolve("lib/main/foo.bar-4.5.jar");
+    probe.bach.new Packager().jar(jar, List.of(classes.getParent()), null, null);
+
+    var expected = probe.bach.new Library().jars.get(jar).descriptor;
+    var actual = probe.bach.new Library().jars.get(jar).descriptor;
+    assertTrue(actual.isAutomatic());
+    assertEquals(expected, actual);
+    assertEquals("foo.bar", actual.name());
+    assertEquals(ModuleDescriptor.Version.parse("4.5"), actual.version().orElseThrow());
+    assertEquals(1, probe.bach.history.counters.get("library.hits"));
+  }
+
+  private static Probe probe(Path temp, String declaration) throws Exception {
+    var info =
+        Files.createDirectories(temp.resolve("src/app/main/java")).resolve("module-info.java");
+    Files.writeString(info, declaration);
+    var overrides =
+        Map.of(
+            "path.sources", temp.resolve("src").toString(),
+            "path.library", temp.resolve("lib").toString(),
+            "path.target", temp.resolve("bin").toString());
+    return new Probe(temp, temp.resolve("work"), overrides);
+  }
+
+  private static void source(Path temp, String module, String info, String pkg) throws Exception {
+    var source = Files.createDirectories(temp.resolve("lib-src/" + module + "/" + pkg));
+    Files.writeString(source.resolveSibling("module-info.java"), info);
+    Files.writeString(source.resolve("C.java"), "package " + pkg + "; public class C {}");
+  }
+
+  private static void jar(Probe probe, Path temp, String module) throws Exception {
+    var classes = temp.resolve("lib-classes/" + module);
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    var code =
+        javac.run(
+            System.out,
+            System.err,
+            "-d",
+            classes.toString(),
+            "--module-source-path",
+            temp.resolve("lib-src").toString(),
+            "--module",
+            module);
+    assertEquals(0, code);
+    var jar = temp.resolve("lib/main/" + module + ".jar");
+    var version = ModuleDescriptor.Version.parse("1.2.3");
+    probe.bach.new Packager().jar(jar, List.of(classes.resolve(module)), version, null);
+  }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LinkerTests {
+
+  @Test
+  void linkDemoIntoCachedImage(@TempDir Path temp) throws Exception {
+    var overrides = Map.of("path.target", temp.resolve("bin").toString(), "link.cds", "true");
+    var probe = new Probe(Path.of(""), Path.of("target/probe"), overrides);
+    var bach = probe.bach;
+    assertEquals(0, bach.main(List.of("build")), probe.toString());
+
+    var linker = bach.new Linker(temp.resolve("cache"));
+    assertEquals(0, linker.link(bach.project.main), probe.toString());
+    var images = Files.list(linker.cache).filter(Files::isDirectory).collect(Collectors.toList());
+    assertEquals(1, images.size(), images.toString());
+    var image = images.get(0);
+    var modules = Files.readString(image.resolve("release"));
+    assertTrue(modules.contains("de.sormuras.bach.demo"), modules);
+    assertTrue(Files.isRegularFile(image.resolve("lib/server/classes.jsa")), "CDS archive");
+    assertEquals(
+        image.toAbsolutePath(), Files.readSymbolicLink(bach.project.main.target.resolve("image")));
+
+    var time = Files.getLastModifiedTime(image);
+    assertEquals(0, linker.link(bach.project.main), probe.toString());
+    assertEquals(time, Files.getLastModifiedTime(image), "cached image must be reused");
+    assertEquals(1, bach.history.counters.get("link.misses"));
+    assertEquals(1, bach.history.counters.get("link.hits"));
+
+    var modulePath = linker.modulePath(bach.project.main);
+    var options = List.of("--strip-debug");
+    assertNotEquals(
+        linker.hash(bach.project.main, modulePath, options, true),
+        linker.hash(bach.project.main, modulePath, options, false));
+  }
+
+  @Test
+  void rebuiltJarWithSameContentsHitsCachedImage(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("src/a/main/java"));
+    Files.writeString(a.resolve("module-info.java"), "module a {}");
+    var past = FileTime.from(Instant.parse("2000-01-01T00:00:00Z"));
+    Files.setLastModifiedTime(a.resolve("module-info.java"), past);
+    var cache = temp.resolve("cache");
+
+    var first = probe(temp, "false"); // in memory, entries get the time of their source
+    assertEquals(0, first.bach.main(List.of("build")), first.toString());
+    var jar = first.bach.project.main.jar("a");
+    var bytes = Files.readAllBytes(jar);
+    assertEquals(0, first.bach.new Linker(cache).link(first.bach.project.main), first.toString());
+    assertEquals(1, first.bach.history.counters.get("link.misses"));
+
+    var second = probe(temp, "true"); // class directories, entries get the time of compilation
+    assertEquals(0, second.bach.main(List.of("build")), second.toString());
+    assertFalse(Arrays.equals(bytes, Files.readAllBytes(jar)), "jar must be rebuilt");
+    assertEquals(
+        0, second.bach.new Linker(cache).link(second.bach.project.main), second.toString());
+    assertEquals(1, second.bach.history.counters.get("link.hits"));
+    assertEquals(null, second.bach.history.counters.get("link.misses"));
+  }
+
+  @Test
+  void concurrentInProcessLinksDontInterfere(@TempDir Path temp) throws Exception {
+    var probe = new Probe(Path.of(""), temp);
+    var links =
+        IntStream.range(0, 4)
+            .mapToObj(
+                i ->
+                    CompletableFuture.supplyAsync(
+                        () -> {
+                          var output = temp.resolve("image-" + i);
+                          return probe.bach.runner.run(
+                              "jlink", "--add-modules", "java.base", "--output", output);
+                        }))
+            .collect(Collectors.toList());
+    for (var link : links) {
+      assertEquals(0, link.get(), probe.toString());
+    }
+  }
+
+  private static Probe probe(Path temp, String classes) {
+    var overrides =
+        Map.of(
+            "path.sources",
+            temp.resolve("src").toString(),
+            "path.library",
+            temp.resolve("lib").toString(),
+            "path.target",
+            temp.resolve("bin").toString(),
+            "compile.classes",
+            classes);
+    return new Probe(temp, temp.resolve("work"), overrides);
+  }
+}
@@ -0,0 +1,234 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MavenTests {
+
+  @Test
+  void resolveTransitiveDependencies(@TempDir Path temp) throws Exception {
+    var repository = repository(temp);
+    var probe = new Probe();
+    var store = temp.resolve("store/models.txt");
+    var maven = probe.bach.new Maven(repository.toUri().toString(), store);
+    var expected =
+        List.of(
+            "org.example:app:1",
+            "org.example:common:1",
+            "org.example:lib:2",
+            "org.example:deep:3",
+            "org.example:runtime:1");
+    assertEquals(expected, maven.resolve(List.of("org.example:app:1")));
+    assertEquals(
+        6,
+        probe.bach.history.counters.get("maven.misses"),
+        "app, bom, common, lib, deep and runtime");
+
+    var jars = maven.download(temp.resolve("lib"), expected);
+    assertEquals(5, jars.size());
+    assertTrue(Files.isRegularFile(temp.resolve("lib/lib-2.jar")));
+
+    var offline = probe.bach.new Maven(temp.resolve("void").toUri().toString(), store);
+    assertEquals(expected, offline.resolve(List.of("org.example:app:1")));
+    var missing = assertThrows(UncheckedIOException.class, () -> offline.model("x:y:1"));
+    assertTrue(missing.getMessage().startsWith("Reading POM failed"));
+  }
+
+  @Test
+  void effectiveModelInheritsAndInterpolates(@TempDir Path temp) throws Exception {
+    var repository = repository(temp);
+    var maven = new Probe().bach.new Maven(repository.toUri().toString(), temp.resolve("m.txt"));
+    var model = maven.model("org.example:app:1");
+    assertEquals("jar", model.packaging);
+    assertEquals(
+        List.of(
+            "org.example:common:1:compile:jar:0::",
+            "org.example:lib:2:compile:jar:0:org.example/excluded:",
+            "org.example:deep:3:runtime:jar:0::",
+            "junit:junit:4:test:jar:0::",
+            "org.example:optional:1:compile:jar:1::"),
+        model.dependencies.stream().map(Object::toString).collect(Collectors.toList()));
+  }
+
+  @Test
+  void rootManagementOverridesTransitiveDependencies(@TempDir Path temp) throws Exception {
+    var repository = temp.resolve("repository");
+    pom(
+        repository,
+        "org.example:app:1",
+        "<dependencyManagement><dependencies>",
+        dependency("org.example", "lib", "1", ""),
+        dependency("org.example", "tool", "1", "<scope>test</scope>"),
+        "</dependencies></dependencyManagement>",
+        "<dependencies>",
+        dependency("org.example", "mid", "1", ""),
+        "</dependencies>");
+    pom(
+        repository,
+        "org.example:mid:1",
+        "<dependencies>",
+        dependency("org.example", "lib", "2", ""),
+        dependency("org.example", "tool", "1", ""),
+        "</dependencies>");
+    pom(repository, "org.example:lib:1");
+    pom(repository, "org.example:tool:1");
+    var maven = new Probe().bach.new Maven(repository.toUri().toString(), temp.resolve("m.txt"));
+    assertEquals(
+        List.of("org.example:app:1", "org.example:mid:1", "org.example:lib:1"),
+        maven.resolve(List.of("org.example:app:1")));
+  }
+
+  @Test
+  void classifiedArtifactsAreResolvedAndDownloaded(@TempDir Path temp) throws Exception {
+    var repository = temp.resolve("repository");
+    pom(
+        repository,
+        "org.example:app:1",
+        "<properties><os>linux</os></properties>",
+        "<dependencies>",
+        dependency("org.example", "native", "1", ""),
+        dependency("org.example", "native", "1", "<classifier>${os}</classifier>"),
+        "</dependencies>");
+    pom(repository, "org.example:native:1");
+    var directory = repository.resolve("org/example/native/1");
+    Files.writeString(directory.resolve("native-1-linux.jar"), "org.example:native:1:linux");
+    var store = temp.resolve("m.txt");
+    var probe = new Probe();
+    var maven = probe.bach.new Maven(repository.toUri().toString(), store);
+    var expected =
+        List.of("org.example:app:1", "org.example:native:1", "org.example:native:1:linux");
+    assertEquals(expected, maven.resolve(List.of("org.example:app:1")));
+    assertEquals(2, probe.bach.history.counters.get("maven.misses"), "app and native");
+    var offline = probe.bach.new Maven(temp.resolve("void").toUri().toString(), store);
+    assertEquals(expected, offline.resolve(List.of("org.example:app:1")));
+
+    var jars = maven.download(temp.resolve("lib"), List.of("org.example:native:1:linux"));
+    assertEquals(List.of(temp.resolve("lib/native-1-linux.jar")), jars);
+    assertEquals("org.example:native:1:linux", Files.readString(jars.get(0)));
+  }
+
+  @Test
+  void cyclesOfParentsAndImportsAreReported(@TempDir Path temp) throws Exception {
+    var repository = temp.resolve("repository");
+    pom(repository, "org.example:a:1", parent("org.example:b:1"));
+    pom(repository, "org.example:b:1", parent("org.example:a:1"));
+    pom(
+        repository,
+        "org.example:c:1",
+        "<dependencyManagement><dependencies>",
+        dependency("org.example", "d", "1", "<type>pom</type><scope>import</scope>"),
+        "</dependencies></dependencyManagement>");
+    pom(
+        repository,
+        "org.example:d:1",
+        "<dependencyManagement><dependencies>",
+        dependency("org.example", "c", "1", "<type>pom</type><scope>import</scope>"),
+        "</dependencies></dependencyManagement>");
+    var maven = new Probe().bach.new Maven(repository.toUri().toString(), temp.resolve("m.txt"));
+    var parents = assertThrows(IllegalStateException.class, () -> maven.model("org.example:a:1"));
+    assertTrue(parents.getMessage().startsWith("Cycle in parent POMs"), parents.getMessage());
+    var imports = assertThrows(IllegalStateException.class, () -> maven.model("org.example:c:1"));
+    assertTrue(imports.getMessage().startsWith("Cycle in imported BOMs"), imports.getMessage());
+  }
+
+  /** Create a file-based Maven 2 repository with a few interlinked artifacts. */
+  private static Path repository(Path temp) throws Exception {
+    var repository = temp.resolve("repository");
+    pom(
+        repository,
+        "org.example:parent:1",
+        "<packaging>pom</packaging>",
+        "<properties><lib.version>2</lib.version></properties>",
+        "<dependencyManagement><dependencies>",
+        dependency("org.example", "lib", "${lib.version}", ""),
+        dependency("org.example", "bom", "1", "<type>pom</type><scope>import</scope>"),
+        "</dependencies></dependencyManagement>",
+        "<dependencies>",
+        dependency("org.example", "common", "1", ""),
+        "</dependencies>");
+    pom(
+        repository,
+        "org.example:bom:1",
+        "<packaging>pom</packaging>",
+        "<dependencyManagement><dependencies>",
+        dependency("org.example", "deep", "3", "<scope>runtime</scope>"),
+        dependency("org.example", "lib", "0", ""),
+        "</dependencies></dependencyManagement>");
+    pom(
+        repository,
+        "org.example:app:1",
+        "<parent><groupId>org.example</groupId><artifactId>parent</artifactId>",
+        "<version>1</version></parent>",
+        "<dependencies>",
+        dependency(
+            "${project.groupId}",
+            "lib",
+            "",
+            "<exclusions><exclusion><groupId>org.example</groupId>"
+                + "<artifactId>excluded</artifactId></exclusion></exclusions>"),
+        dependency("org.example", "deep", "", ""),
+        dependency("junit", "junit", "4", "<scope>test</scope>"),
+        dependency("org.example", "optional", "1", "<optional>true</optional>"),
+        "</dependencies>");
+    pom(
+        repository,
+        "org.example:lib:2",
+        "<dependencies>",
+        dependency("org.example", "common", "0.9", ""),
+        dependency("org.example", "excluded", "1", ""),
+        dependency("org.example", "runtime", "[1]", "<scope>runtime</scope>"),
+        "</dependencies>");
+    pom(repository, "org.example:deep:3");
+    pom(repository, "org.example:common:1");
+    pom(repository, "org.example:runtime:1");
+    return repository;
+  }
+
+  private static String parent(String coordinates) {
+    var split = coordinates.split(":");
+    return "<parent><groupId>"
+        + split[0]
+        + "</groupId><artifactId>"
+        + split[1]
+        + "</artifactId><version>"
+        + split[2]
+        + "</version></parent>";
+  }
+
+  private static String dependency(String group, String artifact, String version, String more) {
+    var v = version.isEmpty() ? "" : "<version>" + version + "</version>";
+    return "<dependency><groupId>"
+        + group
+        + "</groupId><artifactId>"
+        + artifact
+        + "</artifactId>"
+        + v
+        + more
+        + "</dependency>";
+  }
+
+  private static void pom(Path repository, String coordinates, String... lines) throws Exception {
+    var split = coordinates.split(":");
+    var directory =
+        repository.resolve(split[0].replace('.', '/')).resolve(split[1]).resolve(split[2]);
+    var name = split[1] + '-' + split[2];
+    Files.createDirectories(directory);
+    var pom = new StringBuilder();
+    pom.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    pom.append("<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n");
+    pom.append("<modelVersion>4.0.0</modelVersion>\n");
+    pom.append("<groupId>").append(split[0]).append("</groupId>\n");
+    pom.append("<artifactId>").append(split[1]).append("</artifactId>\n");
+    pom.append("<version>").append(split[2]).append("</version>\n");
+    pom.append(String.join("\n", lines)).append("\n</project>\n");
+    Files.writeString(directory.resolve(name + ".pom"), pom);
+    Files.writeString(directory.resolve(name + ".jar"), coordinates);
+  }
+}
@@ -1,12 +1,17 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.lang.module.ModuleDescriptor;
 import java.lang.module.ModuleDescriptor.Requires;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ModulesTests {
 
@@ -33,6 +38,26 @@ class ModulesTests {
     assertTrue(names.contains("java.xml"));
   }
 
+  @Test
+  void systemModuleCatalogIsMemoized() {
+    var catalog = Bach.Modules.catalog();
+    assertSame(catalog, Bach.Modules.catalog(Path.of(System.getProperty("java.home"))));
+    assertEquals("java.base", catalog.module("java.lang").orElseThrow());
+    assertEquals("java.sql", catalog.module("java.sql").orElseThrow());
+    assertTrue(catalog.module("org.junit.jupiter.api").isEmpty());
+    assertEquals(catalog.descriptors.keySet(), Set.copyOf(Bach.Modules.findSystemModuleNames()));
+  }
+
+  @Test
+  void systemModuleCatalogOfOtherJavaHome(@TempDir Path temp) throws Exception {
+    var home =
+        Files.createSymbolicLink(temp.resolve("jdk"), Path.of(System.getProperty("java.home")));
+    var catalog = Bach.Modules.catalog(home);
+    assertNotSame(Bach.Modules.catalog(), catalog);
+    assertEquals(Bach.Modules.catalog().descriptors.keySet(), catalog.descriptors.keySet());
+    assertEquals(Bach.Modules.catalog().packages, catalog.packages);
+  }
+
   @Test
   void moduleDeclarationWithRequiresAndVersion() {
     var descriptor = Bach.Modules.parseDeclaration("module a{requires b/*1.2*/;}");
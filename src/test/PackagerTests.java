@@ -0,0 +1,218 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.module.ModuleDescriptor.Version;
+import java.lang.module.ModuleFinder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarFile;
+import java.util.spi.ToolProvider;
+import java.util.zip.ZipEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackagerTests {
+
+  @Test
+  void packageModuleWithVersionAndMainClass(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var packager = new Probe().bach.new Packager();
+    var jar = temp.resolve("jars/foo.jar");
+    packager.jar(jar, List.of(classes), Version.parse("4.7.11"), "foo.Main");
+
+    var descriptor = ModuleFinder.of(jar).find("foo").orElseThrow().descriptor();
+    assertEquals("4.7.11", descriptor.version().orElseThrow().toString());
+    assertEquals("foo.Main", descriptor.mainClass().orElseThrow());
+    try (var file = new JarFile(jar.toFile())) {
+      assertEquals("foo.Main", file.getManifest().getMainAttributes().getValue("Main-Class"));
+      var names = new ArrayList<String>();
+      file.stream().forEach(entry -> names.add(entry.getName()));
+      assertEquals(
+          List.of(
+              "META-INF/",
+              "META-INF/MANIFEST.MF",
+              "foo/",
+              "foo/Main.class",
+              "foo/data.txt",
+              "module-info.class"),
+          names);
+      var data = file.getInputStream(file.getEntry("foo/data.txt")).readAllBytes();
+      assertEquals("123", new String(data));
+    }
+    var process = new ProcessBuilder(java(), "--module-path", jar.toString(), "--module", "foo");
+    var output = new String(process.start().getInputStream().readAllBytes()).trim();
+    assertEquals("foo 4.7.11", output);
+  }
+
+  @Test
+  void reproducibleTimestamps(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var time = FileTime.from(Instant.parse("2019-08-01T12:34:56Z"));
+    var packager = new Probe().bach.new Packager("deflate", time);
+    packager.jar(temp.resolve("a.jar"), List.of(classes), null, null);
+    Files.setLastModifiedTime(classes.resolve("foo/data.txt"), Files.getLastModifiedTime(temp));
+    packager.jar(temp.resolve("b.jar"), List.of(classes), null, null);
+    assertArrayEquals(
+        Files.readAllBytes(temp.resolve("a.jar")), Files.readAllBytes(temp.resolve("b.jar")));
+    try (var file = new JarFile(temp.resolve("a.jar").toFile())) {
+      var local = file.getEntry("foo/data.txt").getTimeLocal();
+      assertEquals(LocalDateTime.of(2019, 8, 1, 12, 34, 56), local, "UTC in any time zone");
+    }
+  }
+
+  @Test
+  void incrementalUpdateIsByteIdenticalToFullRebuild(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var time = FileTime.from(Instant.parse("2019-08-01T12:34:56Z"));
+    var probe = new Probe();
+    var packager = probe.bach.new Packager("deflate", time);
+    var jar = temp.resolve("incremental.jar");
+    packager.jar(jar, List.of(classes), null, "foo.Main");
+    Files.writeString(classes.resolve("foo/data.txt"), "456");
+    packager.jar(jar, List.of(classes), null, "foo.Main");
+    var modified = Files.getLastModifiedTime(jar);
+    packager.jar(jar, List.of(classes), null, "foo.Main");
+    packager.jar(temp.resolve("full.jar"), List.of(classes), null, "foo.Main");
+
+    assertArrayEquals(Files.readAllBytes(temp.resolve("full.jar")), Files.readAllBytes(jar));
+    assertEquals(modified, Files.getLastModifiedTime(jar), "unchanged jar must not be written");
+    assertLinesMatch(
+        List.of(
+            "Packaged .+incremental.jar with 6 entries \\(6 changed\\) in .+ ms",
+            "Packaged .+incremental.jar with 6 entries \\(1 changed\\) in .+ ms",
+            "Packaged .+incremental.jar with 6 entries \\(0 changed\\) in .+ ms",
+            "Packaged .+full.jar with 6 entries \\(6 changed\\) in .+ ms"),
+        probe.lines());
+    try (var file = new JarFile(jar.toFile())) {
+      var data = file.getInputStream(file.getEntry("foo/data.txt")).readAllBytes();
+      assertEquals("456", new String(data));
+    }
+  }
+
+  @Test
+  void largeEntriesAreStreamedAndCopiedByteIdentically(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var random = new Random(47);
+    var large = new byte[Bach.Packager.BATCH + 12345];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) ('a' + random.nextInt(4)); // compressible, but not trivially
+    }
+    Files.write(classes.resolve("foo/large.bin"), large);
+    var time = FileTime.from(Instant.parse("2019-08-01T12:34:56Z"));
+    for (var mode : List.of("deflate", "store")) {
+      var probe = new Probe();
+      var packager = probe.bach.new Packager(mode, time);
+      var jar = temp.resolve(mode + "-incremental.jar");
+      Files.writeString(classes.resolve("foo/data.txt"), "123");
+      packager.jar(jar, List.of(classes), null, "foo.Main");
+      Files.writeString(classes.resolve("foo/data.txt"), "456");
+      packager.jar(jar, List.of(classes), null, "foo.Main");
+      packager.jar(temp.resolve(mode + "-full.jar"), List.of(classes), null, "foo.Main");
+
+      var full = Files.readAllBytes(temp.resolve(mode + "-full.jar"));
+      assertArrayEquals(full, Files.readAllBytes(jar), mode);
+      assertLinesMatch(
+          List.of(
+              "Packaged .+incremental.jar with 7 entries \\(7 changed\\) in .+ ms",
+              "Packaged .+incremental.jar with 7 entries \\(1 changed\\) in .+ ms",
+              "Packaged .+full.jar with 7 entries \\(7 changed\\) in .+ ms"),
+          probe.lines());
+      try (var file = new JarFile(jar.toFile())) {
+        assertArrayEquals(
+            large, file.getInputStream(file.getEntry("foo/large.bin")).readAllBytes());
+        var data = file.getInputStream(file.getEntry("foo/data.txt")).readAllBytes();
+        assertEquals("456", new String(data));
+      }
+      assertTrue(Files.notExists(temp.resolve(mode + "-incremental.jar.tmp")));
+    }
+  }
+
+  @Test
+  void unchangedJarIsNotRewrittenWithoutFixedTimestamp(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var probe = new Probe();
+    var packager = probe.bach.new Packager("deflate", null);
+    var jar = temp.resolve("a.jar");
+    packager.jar(jar, List.of(classes), null, "foo.Main");
+    var bytes = Files.readAllBytes(jar);
+    var modified = Files.getLastModifiedTime(jar);
+    Thread.sleep(2100); // MS-DOS times have a resolution of two seconds
+    packager.jar(jar, List.of(classes), null, "foo.Main");
+    assertEquals(modified, Files.getLastModifiedTime(jar), "unchanged jar must not be written");
+    assertArrayEquals(bytes, Files.readAllBytes(jar));
+    packager.jar(temp.resolve("b.jar"), List.of(classes), null, "foo.Main");
+    assertArrayEquals(bytes, Files.readAllBytes(temp.resolve("b.jar")), "same as from scratch");
+  }
+
+  @Test
+  void storedEntriesAreNotCompressed(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var packager = new Probe().bach.new Packager("store");
+    var jar = temp.resolve("stored.jar");
+    packager.jar(jar, List.of(classes), Version.parse("1"), "foo.Main");
+
+    try (var file = new JarFile(jar.toFile())) {
+      file.stream().forEach(entry -> assertEquals(ZipEntry.STORED, entry.getMethod()));
+      var data = file.getInputStream(file.getEntry("foo/data.txt")).readAllBytes();
+      assertEquals("123", new String(data));
+    }
+    var process = new ProcessBuilder(java(), "--module-path", jar.toString(), "--module", "foo");
+    var output = new String(process.start().getInputStream().readAllBytes()).trim();
+    assertEquals("foo 1", output);
+  }
+
+  @Test
+  void unknownModeIsRejected() {
+    var bach = new Probe().bach;
+    assertThrows(IllegalArgumentException.class, () -> bach.new Packager("zstd"));
+  }
+
+  @Test
+  void duplicateEntriesAreRejected(@TempDir Path temp) throws Exception {
+    var classes = compile(temp);
+    var packager = new Probe().bach.new Packager();
+    var roots = List.of(classes, classes);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> packager.jar(temp.resolve("x.jar"), roots, null, null));
+  }
+
+  private static Path compile(Path temp) throws Exception {
+    var source = Files.createDirectories(temp.resolve("src/foo/foo"));
+    Files.writeString(source.resolveSibling("module-info.java"), "module foo {}");
+    Files.writeString(
+        source.resolve("Main.java"),
+        "package foo; public class Main { public static void main(String... args) {"
+            + " var module = Main.class.getModule().getDescriptor();"
+            + " System.out.println(module.name() + ' ' + module.version().orElseThrow()); } }");
+    var classes = temp.resolve("classes");
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    var src = temp.resolve("src/foo").toString();
+    assertEquals(
+        0,
+        javac.run(
+            System.out,
+            System.err,
+            "-d",
+            classes.toString(),
+            "-sourcepath",
+            src,
+            src + "/module-info.java",
+            source.resolve("Main.java").toString()));
+    Files.writeString(classes.resolve("foo/data.txt"), "123");
+    return classes;
+  }
+
+  private static String java() {
+    return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+  }
+}
@@ -21,6 +21,10 @@ class Probe extends Bach.Configuration.Basic {
   }
 
   Probe(Path home, Path work) {
+    this(home, work, Map.of());
+  }
+
+  Probe(Path home, Path work, Map<String, String> overrides) {
     try {
       Files.createDirectories(work);
     } catch (IOException e) {
@@ -28,7 +32,10 @@ class Probe extends Bach.Configuration.Basic {
     }
     var random = Math.random();
     this.redirected = work.resolve("probe-output-" + random + ".txt");
-    var configuration = Bach.Configuration.of(this, home, work);
+    var properties = Bach.Configuration.properties(home);
+    properties.putAll(overrides);
+    properties.putIfAbsent("path.cache", work.resolve("cache").toString()); // keep ~/.bach clean
+    var configuration = new Bach.Configuration(this, home, work, properties);
     this.bach = new Bach(new PrintWriter(out), new PrintWriter(err), configuration);
   }
 
@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.module.ModuleDescriptor.Version;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.spi.ToolProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResolverTests {
+
+  @Test
+  void resolveTransitiveModulesInRounds(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires a; }");
+    var jars =
+        remote(
+            probe,
+            temp,
+            "module a { requires b; requires static s; }",
+            "module b { requires c; }",
+            "module c {}",
+            "module s {}");
+    var lines = new ArrayList<String>();
+    jars.forEach((module, jar) -> lines.add(module + '=' + jar.toUri()));
+    Files.createDirectories(temp.resolve("lib/main"));
+    Files.write(temp.resolve("lib/main/module-uri.properties"), lines);
+
+    var resolver = probe.bach.new Resolver();
+    assertEquals(Set.of("a"), resolver.missing(probe.bach.project.main, probe.bach.new Library()));
+    assertEquals(0, resolver.resolve(probe.bach.project.main), probe.toString());
+    assertTrue(Files.isRegularFile(temp.resolve("lib/main/a.jar")));
+    assertTrue(Files.isRegularFile(temp.resolve("lib/main/b.jar")));
+    assertTrue(Files.isRegularFile(temp.resolve("lib/main/c.jar")));
+    assertEquals(3, probe.bach.history.counters.get("download.misses"));
+    assertLinesMatch(
+        List.of(
+            ">> packaging remote modules >>",
+            "Resolving main modules, round 1: [a]",
+            ">> a >>",
+            "Resolving main modules, round 2: [b]",
+            ">> b >>",
+            "Resolving main modules, round 3: [c]",
+            ">> c >>"),
+        probe.lines());
+    assertEquals(List.of(), probe.errors(), "static requires are not resolved");
+
+    assertEquals(0, resolver.resolve(probe.bach.project.main), probe.toString());
+    assertEquals(3, probe.bach.history.counters.get("download.misses"), "no new downloads");
+  }
+
+  @Test
+  void resolveModulesByMavenCoordinates(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires a; requires org.opentest4j; }");
+    var repository = temp.resolve("repository");
+    var jars = remote(probe, temp, "module a {}", "module org.opentest4j {}");
+    var alpha = Files.createDirectories(repository.resolve("com/example/alpha/1.0"));
+    Files.copy(jars.get("a"), alpha.resolve("alpha-1.0.jar"));
+    var opentest4j = Files.createDirectories(repository.resolve("org/opentest4j/opentest4j/1.2.0"));
+    Files.copy(jars.get("org.opentest4j"), opentest4j.resolve("opentest4j-1.2.0.jar"));
+    Files.createDirectories(temp.resolve("lib/main"));
+    Files.writeString(temp.resolve("lib/main/module-maven.properties"), "a=com.example:alpha:1.0");
+
+    assertEquals(0, probe.bach.new Resolver().resolve(probe.bach.project.main), probe.toString());
+    assertTrue(Files.isRegularFile(temp.resolve("lib/main/alpha-1.0.jar")));
+    assertTrue(Files.isRegularFile(temp.resolve("lib/main/opentest4j-1.2.0.jar")));
+  }
+
+  @Test
+  void unmappedModulesAreReported(@TempDir Path temp) throws Exception {
+    var probe = probe(temp, "module app { requires x; }");
+    assertEquals(0, probe.bach.new Resolver().resolve(probe.bach.project.main), probe.toString());
+    assertEquals(List.of("No URI for 1 module(s) of main realm: [x]"), probe.errors());
+  }
+
+  private static Probe probe(Path temp, String declaration) throws Exception {
+    var info =
+        Files.createDirectories(temp.resolve("src/app/main/java")).resolve("module-info.java");
+    Files.writeString(info, declaration);
+    var overrides =
+        Map.of(
+            "path.sources", temp.resolve("src").toString(),
+            "path.library", temp.resolve("lib").toString(),
+            "path.target", temp.resolve("bin").toString(),
+            "uri.maven.repository", temp.resolve("repository").toUri().toString());
+    return new Probe(temp, temp.resolve("work"), overrides);
+  }
+
+  /** Compile modules declared by the given declarations and package each into its own jar. */
+  private static Map<String, Path> remote(Probe probe, Path temp, String... declarations)
+      throws Exception {
+    var sources = temp.resolve("remote-src");
+    var jars = new TreeMap<String, Path>();
+    for (var declaration : declarations) {
+      var module = Bach.Modules.parseDeclaration(declaration).name();
+      var info = Files.createDirectories(sources.resolve(module)).resolve("module-info.java");
+      Files.writeString(info, declaration);
+      jars.put(module, temp.resolve("remote").resolve(module + ".jar"));
+    }
+    var classes = temp.resolve("remote-classes");
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    var modules = String.join(",", jars.keySet());
+    var code =
+        javac.run(
+            System.out,
+            System.err,
+            "-d",
+            classes.toString(),
+            "--module-source-path",
+            sources.toString(),
+            "--module",
+            modules);
+    assertEquals(0, code);
+    for (var module : jars.keySet()) {
+      var roots = List.of(classes.resolve(module));
+      probe.bach.new Packager().jar(jars.get(module), roots, Version.parse("1"), null);
+    }
+    return jars;
+  }
+}
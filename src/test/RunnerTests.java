@@ -1,12 +1,33 @@
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class RunnerTests {
   @Test
@@ -48,4 +69,303 @@ class RunnerTests {
         List.of(">> javac(\"--version\")", "Running provided tool.+", "javac .+"), probe.lines());
     assertLinesMatch(List.of(), probe.errors());
   }
+
+  @Test
+  void runJavaVersionWithCapturedOutput(@TempDir Path work) throws Exception {
+    var probe = new PipingProbe(work);
+    assertEquals(0, probe.bach.runner.run("java", "--version"));
+    assertLinesMatch(
+        List.of(
+            ">> java(\"--version\")",
+            "Starting new process.+",
+            ".*" + Runtime.version().feature() + ".*",
+            ">> MORE JAVA VERSION INFO >>",
+            "Process .+ successfully terminated."),
+        probe.lines());
+    assertLinesMatch(List.of(), probe.errors());
+    assertEquals(1, Files.list(probe.bach.console.logs).count());
+  }
+
+  @Test
+  void runFailingJavaPrintsTailOfCapturedOutput(@TempDir Path work) throws Exception {
+    var probe = new PipingProbe(work);
+    assertEquals(1, probe.bach.runner.run("java", "--illegal-option"));
+    assertLinesMatch(
+        List.of("java failed with exit code 1, last lines of .+", ".*--illegal-option.*", ">>>>"),
+        probe.errors());
+    var log = Files.list(probe.bach.console.logs).findFirst().orElseThrow();
+    assertTrue(Files.readString(log).contains("--illegal-option"));
+  }
+
+  @Test
+  void interruptedCaptureDoesNotBlockLaterOnes(@TempDir Path work) throws Exception {
+    var probe = new PipingProbe(work);
+    var sleeper = Files.writeString(work.resolve("Sleeper.java"), SLEEPER);
+    var thread = new Thread(() -> probe.bach.runner.run("java", sleeper));
+    thread.setUncaughtExceptionHandler((__, error) -> {}); // "Starting process failed"
+    thread.start();
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (Files.notExists(probe.bach.console.logs)
+        || Files.list(probe.bach.console.logs).count() == 0) {
+      assertTrue(System.nanoTime() < deadline, "process not started in time");
+      Thread.sleep(10);
+    }
+    thread.interrupt();
+    thread.join(10_000);
+    assertFalse(thread.isAlive(), "interrupted run returned");
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(30), () -> assertEquals(0, probe.bach.runner.run("java", "--version")));
+    var version = Runtime.version().toString();
+    assertTrue(probe.lines().stream().anyMatch(line -> line.contains(version)), probe.toString());
+  }
+
+  @Test
+  void standardInputIsInheritedByDefault() {
+    var builder = new Bach.Configuration.Basic().redirectIO().apply(new ProcessBuilder("java"));
+    assertEquals(ProcessBuilder.Redirect.INHERIT, builder.redirectInput());
+    assertEquals(ProcessBuilder.Redirect.PIPE, builder.redirectOutput());
+  }
+
+  @Test
+  void runJavaWithLongCommandLineUsesArgumentFile(@TempDir Path work) throws Exception {
+    var probe = new PipingProbe(work);
+    var value = "x".repeat(Bach.Runner.COMMAND_LINE_LIMIT);
+    assertEquals(0, probe.bach.runner.run("java", "-Dlong=" + value, "--version"));
+    assertTrue(probe.lines().stream().anyMatch(line -> line.startsWith("Writing 2 arguments to")));
+    var arguments = probe.bach.configuration.work.resolve(".bach/arguments");
+    assertEquals(0, Files.list(arguments).count(), "argument file not deleted");
+  }
+
+  @Test
+  void runToolWithoutArgumentFileSupportInBatches() {
+    var probe = new Probe();
+    var runner = probe.bach.runner;
+    assertTrue(runner.forks("jimage"));
+    assertFalse(runner.forks("noop"), "configured tool");
+    assertFalse(runner.forks("javac"), "provided tool");
+    assertFalse(runner.forks("build"), "API tool");
+    var modules = Path.of(System.getProperty("java.home"), "lib", "modules").toString();
+    var operands =
+        Collections.nCopies(Bach.Runner.COMMAND_LINE_LIMIT / modules.length() * 2, modules);
+    assertEquals(0, runner.run("jimage", List.of("info"), operands), probe.toString());
+    var runs = probe.lines().stream().filter(line -> line.startsWith(">> jimage(")).count();
+    assertTrue(runs >= 2, probe.toString());
+
+    var inProcess = Collections.nCopies(1000, "operand-".repeat(4));
+    assertEquals(0, runner.run("noop", List.of("--option"), inProcess));
+    assertEquals(1, probe.lines().stream().filter(line -> line.startsWith(">> noop(")).count());
+  }
+
+  @Test
+  void runtimeToolProvidersAreDiscoveredOnceAndReused() {
+    var providers = new Probe().bach.runner.providers;
+    assertTrue(
+        providers.names().containsAll(List.of("jar", "javac")), providers.names().toString());
+    assertSame(providers.find("javac").orElseThrow(), providers.find("javac").orElseThrow());
+    assertTrue(providers.find("java").isEmpty());
+  }
+
+  @Test
+  void pluginToolProvidersAreCreatedForEachRun(@TempDir Path temp) throws Exception {
+    var probe = new Probe();
+    var providers = probe.bach.runner.providers;
+    register(probe, temp, Plugin.class);
+    assertNotSame(providers.find("plugin").orElseThrow(), providers.find("plugin").orElseThrow());
+    assertEquals(0, probe.bach.runner.run("plugin", "a", "b"));
+    assertEquals(0, probe.bach.runner.run("java", "--version"));
+    assertEquals(Set.of("plugin"), probe.bach.runner.inProcess);
+    assertEquals(Set.of("java"), probe.bach.runner.forked);
+  }
+
+  @Test
+  void concurrentInProcessToolsDontMixTheirOutput(@TempDir Path temp) throws Exception {
+    var buffered = new Probe();
+    register(buffered, temp, Slow.class, Fast.class);
+    assertEquals(
+        List.of("slow 1", "slow 2", "fast 1", "fast 2"), runSlowAndFastConcurrently(buffered));
+
+    var overrides = Map.of("tool.output", "prefixed");
+    var prefixed = new Probe(Path.of(""), Path.of("target/probe/prefixed"), overrides);
+    register(prefixed, temp, Slow.class, Fast.class);
+    assertEquals(
+        List.of("[slow#0] slow 1", "[fast#1] fast 1", "[fast#1] fast 2", "[slow#0] slow 2"),
+        runSlowAndFastConcurrently(prefixed));
+  }
+
+  @Test
+  void launchProfilesIdentifyForkedTools() {
+    var profiles = new Probe().bach.runner.profiles;
+    var jar = List.of("-Dx=y", "-jar", "lib/google-java-format-1.7-all-deps.jar", "--replace");
+    assertEquals("google-java-format-1.7-all-deps", profiles.tool(jar.get(profiles.main(jar))));
+    var module = List.of("-p", "lib", "--module", "org.junit.platform.console/Main", "-h");
+    assertEquals("org.junit.platform.console_Main", profiles.tool(module.get(3)));
+    assertEquals(3, profiles.main(module));
+    var type = List.of("-cp", "a.jar:b.jar", "--add-modules", "ALL-SYSTEM", "com.Main", "x");
+    assertEquals(4, profiles.main(type));
+    assertEquals(-1, profiles.main(List.of("--version")));
+    assertEquals(-1, profiles.main(List.of("-cp", "a.jar", "-jar")));
+  }
+
+  @Test
+  void adaptiveLaunchProfileExploresAndPicksFasterOne(@TempDir Path work) throws Exception {
+    var file = new Probe(Path.of(""), work).bach.history.file;
+    Files.createDirectories(file.getParent());
+    assertFalse(new Probe(Path.of(""), work).bach.runner.profiles.adapt("tool"), "default first");
+    Files.write(file, List.of("time=1 fork.tool.default=900"));
+    assertTrue(new Probe(Path.of(""), work).bach.runner.profiles.adapt("tool"), "tuned next");
+    Files.write(file, List.of("time=1 fork.tool.default=900", "time=2 fork.tool.tuned=600"));
+    assertTrue(new Probe(Path.of(""), work).bach.runner.profiles.adapt("tool"));
+    Files.write(file, List.of("time=1 fork.tool.default=500", "time=2 fork.tool.tuned=600"));
+    assertFalse(new Probe(Path.of(""), work).bach.runner.profiles.adapt("tool"));
+  }
+
+  @Test
+  void tunedLaunchProfileAddsOptionsAndRecordsDuration(@TempDir Path work) {
+    var cache = work.resolve("cache").toString();
+    var overrides = Map.of("java.profile", "tuned", "path.cache", cache);
+    var probe = new Probe(Path.of(""), work, overrides);
+    assertEquals(1, probe.bach.runner.run("java", "-cp", work, "NoSuchMain"));
+    var duration = probe.bach.history.counters.get("fork.NoSuchMain.tuned");
+    assertTrue(duration != null && duration >= 0, probe.toString());
+    var line = probe.lines().stream().filter(it -> it.startsWith("Launching")).findFirst();
+    assertTrue(line.orElseThrow().contains("-XX:TieredStopAtLevel=1"), line.toString());
+    if (Runtime.version().feature() >= 13) {
+      assertTrue(line.orElseThrow().contains("-XX:ArchiveClassesAtExit="), line.toString());
+    }
+  }
+
+  @Test
+  void classDataSharingArchiveIsCreatedOnceAndLockedWhileInUse(@TempDir Path work)
+      throws Exception {
+    if (Runtime.version().feature() < 13) {
+      return; // -XX:ArchiveClassesAtExit is not supported
+    }
+    var cache = work.resolve("cache");
+    var overrides = Map.of("java.profile", "tuned", "path.cache", cache.toString());
+    var probe = new Probe(Path.of(""), work, overrides);
+    var jar = List.of("-m", "jdk.jartool/sun.tools.jar.Main", "--version");
+    assertEquals(0, probe.bach.runner.run("java", jar.toArray()), probe.toString());
+    List<Path> archives;
+    try (var stream = Files.list(cache.resolve("cds"))) {
+      var files = stream.filter(path -> !path.toString().endsWith(".lock"));
+      archives = files.collect(Collectors.toList());
+    }
+    assertEquals(1, archives.size(), archives.toString());
+    assertTrue(archives.get(0).toString().endsWith(".jsa"), archives.toString());
+    assertEquals(0, probe.bach.runner.run("java", jar.toArray()), probe.toString());
+    var line = probe.lines().stream().filter(it -> it.startsWith("Launching")).reduce((a, b) -> b);
+    assertTrue(line.orElseThrow().contains("-XX:SharedArchiveFile="), line.toString());
+    var launch = probe.bach.runner.profiles.launch(jar);
+    assertEquals(List.of(), probe.bach.new Cache().evict(0, 0), "archive in use is kept");
+    launch.release();
+    assertEquals(1, probe.bach.new Cache().evict(0, 0).size());
+    assertTrue(Files.notExists(archives.get(0)));
+  }
+
+  /** Run the fast tool while the slow one is running and return their output lines. */
+  private static List<String> runSlowAndFastConcurrently(Probe probe) throws Exception {
+    Slow.started = new CountDownLatch(1);
+    Slow.proceed = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var slow = executor.submit(() -> probe.bach.runner.run("slow"));
+      assertTrue(Slow.started.await(10, TimeUnit.SECONDS));
+      var fast = executor.submit(() -> probe.bach.runner.run("fast"));
+      Thread.sleep(100);
+      Slow.proceed.countDown();
+      assertEquals(0, slow.get(10, TimeUnit.SECONDS));
+      assertEquals(0, fast.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    return probe.lines().stream()
+        .filter(line -> line.matches("(\\[.+] )?(slow|fast) \\d"))
+        .collect(Collectors.toList());
+  }
+
+  /** Register the given tool provider classes as plugins. */
+  private static void register(Probe probe, Path temp, Class<?>... types) throws Exception {
+    var services = Files.createDirectories(temp.resolve("META-INF/services"));
+    var names = Stream.of(types).map(Class::getName).collect(Collectors.toList());
+    Files.write(services.resolve(ToolProvider.class.getName()), names);
+    var parent = RunnerTests.class.getClassLoader();
+    try (var loader = new URLClassLoader(new URL[] {temp.toUri().toURL()}, parent)) {
+      probe.bach.runner.providers.register(ServiceLoader.load(ToolProvider.class, loader));
+    }
+  }
+
+  /** Tool printing a line, waiting until it may proceed and printing a second line. */
+  public static class Slow implements ToolProvider {
+
+    static volatile CountDownLatch started, proceed;
+
+    @Override
+    public String name() {
+      return "slow";
+    }
+
+    @Override
+    public int run(PrintWriter out, PrintWriter err, String... args) {
+      out.println("slow 1");
+      out.flush();
+      started.countDown();
+      try {
+        proceed.await();
+      } catch (InterruptedException e) {
+        return 1;
+      }
+      out.println("slow 2");
+      return 0;
+    }
+  }
+
+  /** Tool printing two lines at once. */
+  public static class Fast implements ToolProvider {
+
+    @Override
+    public String name() {
+      return "fast";
+    }
+
+    @Override
+    public int run(PrintWriter out, PrintWriter err, String... args) {
+      out.println("fast 1");
+      out.println("fast 2");
+      return 0;
+    }
+  }
+
+  /** Tool provider keeping state, registered as a plugin. */
+  public static class Plugin implements ToolProvider {
+
+    private int runs;
+
+    @Override
+    public String name() {
+      return "plugin";
+    }
+
+    @Override
+    public int run(PrintWriter out, PrintWriter err, String... args) {
+      return runs++ + args.length - 2;
+    }
+  }
+
+  /** Program sleeping long enough to be interrupted. */
+  private static final String SLEEPER =
+      "class Sleeper { public static void main(String... args) throws Exception {"
+          + " System.out.println(\"sleeping\"); Thread.sleep(60_000); } }";
+
+  /** Probe with default redirection, letting the console capture output of processes. */
+  static class PipingProbe extends Probe {
+
+    PipingProbe(Path work) {
+      super(Path.of(""), work);
+    }
+
+    @Override
+    UnaryOperator<ProcessBuilder> redirectIO() {
+      return new Bach.Configuration.Basic().redirectIO();
+    }
+  }
 }
@@ -4,9 +4,18 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class UtilTests {
 
@@ -47,4 +56,117 @@ class UtilTests {
     assertFalse(Bach.Util.isJarFile(Path.of("")));
     assertFalse(Bach.Util.isModuleInfo(Path.of("")));
   }
+
+  @Test
+  void treeDeleteInBackground(@TempDir Path temp) throws Exception {
+    var root = Files.createDirectories(temp.resolve("root/a/b"));
+    Files.writeString(root.resolve("c.txt"), "c");
+    var leftover = Files.createDirectories(temp.resolve("root.deleted-0/root/x"));
+    Files.writeString(leftover.resolve("y.txt"), "y");
+
+    var thread = Bach.Util.treeDeleteInBackground(temp.resolve("root"));
+    assertFalse(Files.exists(temp.resolve("root")), "moved aside immediately");
+    Files.createDirectories(temp.resolve("root"));
+    thread.join();
+    try (var stream = Files.list(temp)) {
+      assertEquals(List.of(temp.resolve("root")), stream.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  void treeDeleteRemovesWideTreeInParallel(@TempDir Path temp) throws Exception {
+    var root = tree(temp.resolve("root"));
+    var reports = new ConcurrentLinkedQueue<Long>();
+    assertEquals(2_000 + 40 + 1, Bach.Util.treeDelete(root, __ -> true, reports::add));
+    assertFalse(Files.exists(root));
+    assertEquals(
+        List.of(1000L, 2000L, 2041L), reports.stream().sorted().collect(Collectors.toList()));
+  }
+
+  @Test
+  void treeDeleteKeepsUnselectedPaths(@TempDir Path temp) throws Exception {
+    var root = tree(temp.resolve("root"));
+    Files.createSymbolicLink(root.resolve("link"), temp.resolve("outside"));
+    Files.writeString(Files.createDirectories(temp.resolve("outside")).resolve("x.txt"), "x");
+
+    Bach.Util.treeDelete(root, path -> path.toString().endsWith(".txt"));
+    try (var stream = Files.walk(root)) {
+      assertEquals(1 + 40 + 1 + 1000, stream.count(), "directories, link and class files remain");
+    }
+    assertTrue(Files.exists(temp.resolve("outside/x.txt")), "links are not followed");
+
+    var e =
+        assertThrows(
+            DirectoryNotEmptyException.class,
+            () -> Bach.Util.treeDelete(root, path -> !path.toString().endsWith(".class")));
+    assertTrue(e.getMessage().startsWith(root.toString()), e.getMessage());
+    assertThrows(
+        NoSuchFileException.class, () -> Bach.Util.treeDelete(temp.resolve("none"), __ -> false));
+  }
+
+  /** Create 40 directories with 25 class and 25 text files each. */
+  private static Path tree(Path root) throws Exception {
+    for (int i = 0; i < 40; i++) {
+      var directory = Files.createDirectories(root.resolve("d" + i));
+      for (int j = 0; j < 25; j++) {
+        Files.writeString(directory.resolve("C" + j + ".class"), "c");
+        Files.writeString(directory.resolve("t" + j + ".txt"), "t");
+      }
+    }
+    return root;
+  }
+
+  @Test
+  void treeSyncCopiesChangedFilesAndDeletesStaleOnes(@TempDir Path temp) throws Exception {
+    var source = Files.createDirectories(temp.resolve("source/sub"));
+    Files.writeString(source.resolve("b.bin"), "b");
+    Files.writeString(temp.resolve("source/a.txt"), "a");
+    var target = Files.createDirectories(temp.resolve("target/sub"));
+    Files.writeString(target.resolve("old.txt"), "old");
+    Files.writeString(temp.resolve("target/stale.txt"), "stale");
+
+    assertEquals(4, Bach.Util.treeSync(temp.resolve("source"), temp.resolve("target")));
+    assertFalse(Files.isSameFile(source.resolve("b.bin"), target.resolve("b.bin")), "a copy");
+    Files.writeString(target.resolve("b.bin"), "modified");
+    assertEquals("b", Files.readString(source.resolve("b.bin")), "source is not modified");
+    assertEquals(1, Bach.Util.treeSync(temp.resolve("source"), temp.resolve("target")));
+    assertFalse(Files.exists(target.resolve("old.txt")));
+    assertFalse(Files.exists(temp.resolve("target/stale.txt")));
+    assertEquals(0, Bach.Util.treeSync(temp.resolve("source"), temp.resolve("target")));
+
+    var replacement = Files.writeString(temp.resolve("b.tmp"), "b2");
+    Files.move(replacement, source.resolve("b.bin"), StandardCopyOption.REPLACE_EXISTING);
+    Files.writeString(target.resolve("extra.txt"), "extra");
+    assertEquals(
+        1, Bach.Util.treeSync(temp.resolve("source"), temp.resolve("target"), __ -> false));
+    assertEquals("b2", Files.readString(target.resolve("b.bin")));
+    assertTrue(Files.exists(target.resolve("extra.txt")), "not selected as stale");
+  }
+
+  @Test
+  void treeSyncKeepsUnchangedCopies(@TempDir Path temp) throws Exception {
+    var source = Files.createDirectories(temp.resolve("source"));
+    Files.writeString(source.resolve("a.txt"), "a");
+    var target = Files.createDirectories(temp.resolve("target"));
+    Files.copy(
+        source.resolve("a.txt"), target.resolve("a.txt"), StandardCopyOption.COPY_ATTRIBUTES);
+    assertEquals(0, Bach.Util.treeSync(source, target));
+    assertFalse(Files.isSameFile(source.resolve("a.txt"), target.resolve("a.txt")));
+
+    Files.setLastModifiedTime(source.resolve("a.txt"), FileTime.from(Instant.EPOCH));
+    assertEquals(1, Bach.Util.treeSync(source, target));
+    assertEquals(FileTime.from(Instant.EPOCH), Files.getLastModifiedTime(target.resolve("a.txt")));
+    assertEquals(0, Bach.Util.treeSync(temp.resolve("none"), temp.resolve("none")));
+  }
+
+  @Test
+  void treeSyncReplacesHardLinks(@TempDir Path temp) throws Exception {
+    var source = Files.createDirectories(temp.resolve("source"));
+    Files.writeString(source.resolve("a.txt"), "a");
+    var target = Files.createDirectories(temp.resolve("target"));
+    Files.createLink(target.resolve("a.txt"), source.resolve("a.txt"));
+    assertEquals(1, Bach.Util.treeSync(source, target));
+    assertFalse(Files.isSameFile(source.resolve("a.txt"), target.resolve("a.txt")));
+    assertEquals(0, Bach.Util.treeSync(source, target));
+  }
 }